@@ -0,0 +1,453 @@
+/*
+ New BSD license: http://opensource.org/licenses/bsd-license.php
+
+ Copyright (c) 2003, 2004, 2005 Sun Microsystems, Inc.
+ 901 San Antonio Road, Palo Alto, CA 94303 USA. 
+ All rights reserved.
+
+
+ Redistribution and use in source and binary forms, with or without 
+ modification, are permitted provided that the following conditions are met:
+
+ - Redistributions of source code must retain the above copyright notice, 
+  this list of conditions and the following disclaimer.
+ - Redistributions in binary form must reproduce the above copyright notice, 
+  this list of conditions and the following disclaimer in the documentation 
+  and/or other materials provided with the distribution.
+ - Neither the name of Sun Microsystems, Inc. nor the names of its contributors
+  may be used to endorse or promote products derived from this software 
+  without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ POSSIBILITY OF SUCH DAMAGE.
+*/
+package net.java.rdf.sommer;
+
+import net.java.rdf.sommer.util.GraphUpdateException;
+import net.java.rdf.sommer.util.ParseException;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads large amounts of rdf into the write graph of a SesameMapper.
+ * Parsing happens on other threads than the inserting, with batches of statements passed through a
+ * bounded queue, and the statements are committed every commitInterval statements, so that no
+ * transaction gets too big. The connection can only be used by one thread, so all inserting is done
+ * by the calling thread.
+ * N-Triples files are memory mapped and cut at line ends into chunks that are parsed in parallel.
+ *
+ * @author Henry Story
+ */
+class BulkLoader {
+
+   static transient Logger log = Logger.getLogger(BulkLoader.class.getName());
+
+   /** the number of statements passed from parsers to the inserting thread at a time */
+   static final int BATCH_SIZE = 1000;
+   /** the size of the chunks N-Triples files are cut into */
+   static final long CHUNK_SIZE = 8 * 1024 * 1024;
+   /** put on the queue by each parser when it is done */
+   private static final List<Statement> END = new ArrayList<Statement>(0);
+
+   private final RepositoryConnection con;
+   private final ValueFactory vf;
+   private final Resource context;
+   private final int commitInterval;
+   private final Mapper.ImportListener listener;
+   private final int threads;
+   private final BlockingQueue<List<Statement>> queue;
+   private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+   private volatile boolean cancelled = false;
+   /**
+    * Blank node labels are scoped to the file, and shared by chunks that are parsed separately.
+    * So the blank nodes of the file are named by their label after this prefix, which is unique to the import.
+    * That names them alike in every chunk without remembering any of them, however many there are.
+    */
+   private final String bnodePrefix;
+
+   /**
+    * @param con            the connection to write to. It must not be in a transaction
+    * @param vf             the value factory of the connection
+    * @param context        the graph to load the statements into
+    * @param commitInterval the number of statements after which to commit
+    * @param listener       told about the progress after each commit, or null
+    */
+   BulkLoader(RepositoryConnection con, ValueFactory vf, Resource context, int commitInterval,
+           Mapper.ImportListener listener) {
+      if (commitInterval <= 0) {
+         throw new IllegalArgumentException("commit interval must be positive, not " + commitInterval);
+      }
+      this.con = con;
+      this.vf = vf;
+      this.context = context;
+      this.commitInterval = commitInterval;
+      this.listener = listener;
+      this.threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+      this.queue = new ArrayBlockingQueue<List<Statement>>(2 * threads + 2);
+      this.bnodePrefix = vf.createBNode().getID() + "_";
+   }
+
+   /**
+    * load the rdf from the reader, parsing it on another thread
+    * @return the number of statements loaded
+    */
+   long load(Reader in, String baseUri, RDFFormat format) throws IOException,
+           GraphUpdateException, ParseException {
+      return load(in, null, baseUri, format);
+   }
+
+   /**
+    * load the rdf from the stream, parsing it on another thread
+    * @return the number of statements loaded
+    */
+   long load(InputStream in, String baseUri, RDFFormat format) throws IOException,
+           GraphUpdateException, ParseException {
+      return load(null, in, baseUri, format);
+   }
+
+   private long load(final Reader reader, final InputStream stream, final String baseUri, final RDFFormat format)
+           throws IOException, GraphUpdateException, ParseException {
+      ExecutorService parsers = Executors.newSingleThreadExecutor();
+      try {
+         parsers.execute(new Runnable() {
+            public void run() {
+               try {
+                  RDFParser parser = Rio.createParser(format, vf);
+                  parser.setRDFHandler(new QueueingHandler(false));
+                  if (reader != null) {
+                     parser.parse(reader, baseUri);
+                  } else {
+                     parser.parse(stream, baseUri);
+                  }
+               } catch (Exception e) {
+                  fail(e);
+               } finally {
+                  end();
+               }
+            }
+         });
+         return insert(1);
+      } finally {
+         cancelled = true;
+         parsers.shutdownNow();
+      }
+   }
+
+   /**
+    * load the rdf from the file. N-Triples files are parsed in parallel.
+    * Note that the line numbers of parse errors in N-Triples files are relative to the chunk they are in.
+    * @return the number of statements loaded
+    */
+   long load(File file, final String baseUri, RDFFormat format) throws IOException,
+           GraphUpdateException, ParseException {
+      if (!RDFFormat.NTRIPLES.equals(format)) {
+         InputStream in = new BufferedInputStream(new FileInputStream(file));
+         try {
+            return load(in, baseUri, format);
+         } finally {
+            in.close();
+         }
+      }
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      ExecutorService parsers = Executors.newFixedThreadPool(threads);
+      try {
+         final FileChannel channel = raf.getChannel();
+         List<long[]> chunks = chunks(channel, CHUNK_SIZE);
+         for (final long[] chunk : chunks) {
+            parsers.execute(new Runnable() {
+               public void run() {
+                  try {
+                     if (cancelled) {
+                        return;
+                     }
+                     ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+                     RDFParser parser = Rio.createParser(RDFFormat.NTRIPLES, vf);
+                     parser.setPreserveBNodeIDs(true);
+                     parser.setRDFHandler(new QueueingHandler(true));
+                     parser.parse(new ByteBufferInputStream(buf), baseUri);
+                  } catch (Exception e) {
+                     fail(e);
+                  } finally {
+                     end();
+                  }
+               }
+            });
+         }
+         return insert(chunks.size());
+      } finally {
+         cancelled = true;
+         parsers.shutdownNow();
+         raf.close();
+      }
+   }
+
+   /**
+    * Cut the file into chunks of about chunkSize bytes that end with a line.
+    * @return the start and end position of each chunk
+    */
+   static List<long[]> chunks(FileChannel channel, long chunkSize) throws IOException {
+      long size = channel.size();
+      ArrayList<long[]> result = new ArrayList<long[]>();
+      ByteBuffer buf = ByteBuffer.allocate(4096);
+      long start = 0;
+      while (start < size) {
+         long end = Math.min(size, start + chunkSize);
+         while (end < size) {
+            buf.clear();
+            int n = channel.read(buf, end);
+            if (n <= 0) {
+               end = size;
+               break;
+            }
+            int i = 0;
+            while (i < n && buf.get(i) != '\n') {
+               i++;
+            }
+            end += (i < n) ? i + 1 : n;
+            if (i < n) {
+               break;
+            }
+         }
+         result.add(new long[]{start, end});
+         start = end;
+      }
+      return result;
+   }
+
+   /**
+    * Insert the batches the parsers put on the queue, until all of them have ended.
+    */
+   private long insert(int parsers) throws IOException, GraphUpdateException, ParseException {
+      long count = 0;
+      long uncommitted = 0;
+      int ended = 0;
+      try {
+         con.setAutoCommit(false);
+         while (ended < parsers) {
+            List<Statement> batch;
+            try {
+               batch = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+               throw new GraphUpdateException("interrupted while importing", e);
+            }
+            rethrowFailure();
+            if (batch == null) {
+               continue;
+            }
+            if (batch == END) {
+               ended++;
+               continue;
+            }
+            con.add(batch, context);
+            count += batch.size();
+            uncommitted += batch.size();
+            if (uncommitted >= commitInterval) {
+               con.commit();
+               uncommitted = 0;
+               if (listener != null) {
+                  listener.progress(count);
+               }
+            }
+         }
+         rethrowFailure();
+         con.commit();
+         if (listener != null) {
+            listener.progress(count);
+         }
+         return count;
+      } catch (RepositoryException e) {
+         rollback();
+         throw new GraphUpdateException(e);
+      } catch (GraphUpdateException e) {
+         rollback();
+         throw e;
+      } catch (IOException e) {
+         rollback();
+         throw e;
+      } catch (ParseException e) {
+         rollback();
+         throw e;
+      } finally {
+         try {
+            con.setAutoCommit(true);
+         } catch (RepositoryException e) {
+            log.log(Level.SEVERE, "could not end transaction", e); //todo: decide what exception to throw
+         }
+      }
+   }
+
+   private void rollback() {
+      cancelled = true;
+      try {
+         con.rollback();
+      } catch (RepositoryException e) {
+         log.log(Level.SEVERE, "could not roll back import", e);
+      }
+   }
+
+   private void rethrowFailure() throws IOException, ParseException, GraphUpdateException {
+      Exception e = failure.get();
+      if (e == null) {
+         return;
+      }
+      if (e instanceof IOException) {
+         throw (IOException) e;
+      }
+      if (e instanceof RDFParseException) {
+         RDFParseException pe = (RDFParseException) e;
+         log.severe("error line=" + pe.getLineNumber() + " col=" + pe.getColumnNumber());
+         throw new ParseException(pe);
+      }
+      throw new GraphUpdateException(e);
+   }
+
+   private void fail(Exception e) {
+      if (!cancelled) {
+         failure.compareAndSet(null, e);
+      }
+   }
+
+   private void end() {
+      put(END);
+   }
+
+   /**
+    * put the batch on the queue, waiting for room unless the import was cancelled
+    * @return false if cancelled
+    */
+   private boolean put(List<Statement> batch) {
+      try {
+         while (!cancelled) {
+            if (queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+               return true;
+            }
+         }
+      } catch (InterruptedException e) {
+         //cancelled
+      }
+      return false;
+   }
+
+   /**
+    * collects the parsed statements in batches for the inserting thread
+    */
+   class QueueingHandler extends RDFHandlerBase {
+
+      private final boolean shareBNodes;
+      private ArrayList<Statement> batch = new ArrayList<Statement>(BATCH_SIZE);
+
+      /**
+       * @param shareBNodes if blank node labels are shared with other parsers of the same file
+       */
+      QueueingHandler(boolean shareBNodes) {
+         this.shareBNodes = shareBNodes;
+      }
+
+      @Override
+      public void handleStatement(Statement st) throws RDFHandlerException {
+         if (shareBNodes && (st.getSubject() instanceof BNode || st.getObject() instanceof BNode)) {
+            st = vf.createStatement((Resource) bnode(st.getSubject()), st.getPredicate(), bnode(st.getObject()));
+         }
+         batch.add(st);
+         if (batch.size() >= BATCH_SIZE) {
+            send();
+         }
+      }
+
+      @Override
+      public void endRDF() throws RDFHandlerException {
+         if (!batch.isEmpty()) {
+            send();
+         }
+      }
+
+      private void send() throws RDFHandlerException {
+         if (!put(batch)) {
+            throw new RDFHandlerException("import cancelled");
+         }
+         batch = new ArrayList<Statement>(BATCH_SIZE);
+      }
+   }
+
+   /**
+    * @return the blank node for the label of a blank node in the file
+    */
+   private Value bnode(Value v) {
+      if (!(v instanceof BNode)) {
+         return v;
+      }
+      return vf.createBNode(bnodePrefix + ((BNode) v).getID());
+   }
+
+   /**
+    * An InputStream on the remaining bytes of a buffer
+    */
+   static class ByteBufferInputStream extends InputStream {
+
+      private final ByteBuffer buf;
+
+      ByteBufferInputStream(ByteBuffer buf) {
+         this.buf = buf;
+      }
+
+      public int read() {
+         return buf.hasRemaining() ? (buf.get() & 0xff) : -1;
+      }
+
+      public int read(byte[] b, int off, int len) {
+         if (len == 0) {
+            return 0;
+         }
+         if (!buf.hasRemaining()) {
+            return -1;
+         }
+         len = Math.min(len, buf.remaining());
+         buf.get(b, off, len);
+         return len;
+      }
+
+      public int available() {
+         return buf.remaining();
+      }
+   }
+}
@@ -0,0 +1,189 @@
+/*
+ New BSD license: http://opensource.org/licenses/bsd-license.php
+
+ Copyright (c) 2003, 2004, 2005 Sun Microsystems, Inc.
+ 901 San Antonio Road, Palo Alto, CA 94303 USA. 
+ All rights reserved.
+
+
+ Redistribution and use in source and binary forms, with or without 
+ modification, are permitted provided that the following conditions are met:
+
+ - Redistributions of source code must retain the above copyright notice, 
+  this list of conditions and the following disclaimer.
+ - Redistributions in binary form must reproduce the above copyright notice, 
+  this list of conditions and the following disclaimer in the documentation 
+  and/or other materials provided with the distribution.
+ - Neither the name of Sun Microsystems, Inc. nor the names of its contributors
+  may be used to endorse or promote products derived from this software 
+  without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ POSSIBILITY OF SUCH DAMAGE.
+*/
+package net.java.rdf.sommer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable index of the java classes mapped to rdf types, answering which java class
+ * an object should be created with given its rdf types.
+ * <p/>
+ * Answers are remembered, keyed by the requested class and the list of types, so that
+ * mapping many resources of the same types needs no list building or reflection after the first one.
+ * A new index is built whenever classes are preloaded.
+ *
+ * @author Henry Story
+ */
+final class ClassHierarchyIndex {
+
+    /** the answers remembered are forgotten when there are this many, to bound memory */
+    static final int MAX_CACHED = 4096;
+
+    /** marks a question that has no answer, as the concurrent map cannot hold null */
+    private static final Class NONE = Void.class;
+
+    private final Map<String, Class[]> classesOfType;
+    private final ConcurrentHashMap<Key, Class> subClasses = new ConcurrentHashMap<Key, Class>();
+    private final ConcurrentHashMap<Key, List<Class>> leafClasses = new ConcurrentHashMap<Key, List<Class>>();
+
+    /**
+     * @param classmap the classes mapped to each rdf type uri; it is copied.
+     */
+    ClassHierarchyIndex(Map<String, List<Class>> classmap) {
+        HashMap<String, Class[]> index = new HashMap<String, Class[]>();
+        for (Map.Entry<String, List<Class>> e : classmap.entrySet()) {
+            ArrayList<Class> classes = new ArrayList<Class>(e.getValue().size());
+            for (Class c : e.getValue()) {
+                if (!classes.contains(c)) {
+                    classes.add(c);
+                }
+            }
+            index.put(e.getKey(), classes.toArray(new Class[classes.size()]));
+        }
+        classesOfType = index;
+    }
+
+    /**
+     * @return the most specific subclass of clazz mapped to one of the typeUris, or null if there is none
+     * @see Mapping#mostSpecificSubClass(Class, Collection)
+     */
+    Class mostSpecificSubClass(Class clazz, Collection<String> typeUris) {
+        Key key = new Key(clazz, typeUris);
+        Class result = subClasses.get(key);
+        if (result == null) {
+            result = findSubClass(clazz, typeUris);
+            remember(subClasses, key, (result == null) ? NONE : result);
+        }
+        return (result == NONE) ? null : result;
+    }
+
+    /**
+     * @return the classes mapped to the typeUris that are not superclasses of another one of them.
+     * The list is shared and cannot be modified.
+     */
+    List<Class> mostSpecificClasses(Collection<String> typeUris) {
+        Key key = new Key(null, typeUris);
+        List<Class> result = leafClasses.get(key);
+        if (result == null) {
+            result = findLeafClasses(typeUris);
+            remember(leafClasses, key, result);
+        }
+        return result;
+    }
+
+    private Class findSubClass(Class clazz, Collection<String> typeUris) {
+        Class solution = clazz;
+        boolean foundOne = false;
+        for (String uri : typeUris) {
+            Class[] classes = classesOfType.get(uri);
+            if (classes == null) {
+                continue;
+            }
+            for (Class candidate : classes) {
+                if (solution.isAssignableFrom(candidate)) {
+                    solution = candidate;
+                    foundOne = true;
+                }
+            }
+        }
+        return foundOne ? solution : null;
+    }
+
+    private List<Class> findLeafClasses(Collection<String> typeUris) {
+        ArrayList<Class> candidates = new ArrayList<Class>();
+        for (String uri : typeUris) {
+            Class[] classes = classesOfType.get(uri);
+            if (classes == null) {
+                continue;
+            }
+            for (Class c : classes) {
+                if (!candidates.contains(c)) {
+                    candidates.add(c);
+                }
+            }
+        }
+        ArrayList<Class> result = new ArrayList<Class>(candidates.size());
+        candidates:
+        for (Class c : candidates) {
+            for (Class other : candidates) {
+                if (other != c && c.isAssignableFrom(other)) {
+                    continue candidates;
+                }
+            }
+            result.add(c);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static <V> void remember(ConcurrentHashMap<Key, V> cache, Key key, V value) {
+        if (cache.size() >= MAX_CACHED) {
+            cache.clear();
+        }
+        cache.put(key, value);
+    }
+
+    /**
+     * A requested class with a list of type uris.
+     * The order of the uris matters: when they map to unrelated subclasses, the first one found is chosen.
+     */
+    static final class Key {
+        final Class clazz;
+        final String[] types;
+        final int hash;
+
+        Key(Class clazz, Collection<String> typeUris) {
+            this.clazz = clazz;
+            this.types = typeUris.toArray(new String[typeUris.size()]);
+            this.hash = ((clazz == null) ? 0 : clazz.hashCode()) * 31 + Arrays.hashCode(types);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return k.hash == hash && k.clazz == clazz && Arrays.equals(k.types, types);
+        }
+    }
+}
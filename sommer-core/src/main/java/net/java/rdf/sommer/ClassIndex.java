@@ -0,0 +1,260 @@
+/*
+ New BSD license: http://opensource.org/licenses/bsd-license.php
+
+ Copyright (c) 2003, 2004, 2005 Sun Microsystems, Inc.
+ 901 San Antonio Road, Palo Alto, CA 94303 USA. 
+ All rights reserved.
+
+
+ Redistribution and use in source and binary forms, with or without 
+ modification, are permitted provided that the following conditions are met:
+
+ - Redistributions of source code must retain the above copyright notice, 
+  this list of conditions and the following disclaimer.
+ - Redistributions in binary form must reproduce the above copyright notice, 
+  this list of conditions and the following disclaimer in the documentation 
+  and/or other materials provided with the distribution.
+ - Neither the name of Sun Microsystems, Inc. nor the names of its contributors
+  may be used to endorse or promote products derived from this software 
+  without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ POSSIBILITY OF SUCH DAMAGE.
+*/
+package net.java.rdf.sommer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.java.rdf.annotations.rdf;
+
+/**
+ * The index of the classes rewritten by the JavassistClassRewriter, written at build time to
+ * {@link #RESOURCE} next to the classes, so that mappers know the mapped classes without their having
+ * to be preloaded, and without looking at their annotations.
+ * <p/>
+ * The index is a UTF-8 text file, with one tab separated entry per line. Lines starting with # are comments.
+ * <pre>
+ * class  &lt;class name&gt;  &lt;rdf type uri&gt;
+ * field  &lt;class name&gt;  &lt;field name&gt;  &lt;relation uri&gt;  &lt;java type&gt;  &lt;range uri or empty&gt;  &lt;inverse&gt;  &lt;functional&gt;
+ * </pre>
+ *
+ * @author Henry Story
+ */
+final class ClassIndex {
+
+    /** the name of the index resource, relative to the root of a classpath entry */
+    static final String RESOURCE = "META-INF/sommer/classes.idx";
+
+    private static final Logger log = Logger.getLogger(ClassIndex.class.getName());
+
+    private final LinkedHashMap<String, String> types = new LinkedHashMap<String, String>();
+    private final LinkedHashMap<String, List<FieldEntry>> fields = new LinkedHashMap<String, List<FieldEntry>>();
+
+    /**
+     * The @rdf field of a rewritten class, as described in the index
+     */
+    static final class FieldEntry {
+        final String name;
+        final String relation;
+        final String javaType;
+        final String range;
+        final boolean inverse;
+        final boolean functional;
+
+        FieldEntry(String name, String relation, String javaType, String range, boolean inverse,
+                   boolean functional) {
+            this.name = name;
+            this.relation = relation;
+            this.javaType = javaType;
+            this.range = range;
+            this.inverse = inverse;
+            this.functional = functional;
+        }
+
+        /**
+         * @return the @rdf annotation of the field, as described by the index
+         */
+        rdf relation() {
+            return new IndexedRelation(relation, inverse, range);
+        }
+    }
+
+    /**
+     * An @rdf annotation read from the index. It is equal to the annotation of the field it describes.
+     */
+    static final class IndexedRelation implements rdf {
+        private final String value;
+        private final boolean inverse;
+        private final String range;
+
+        IndexedRelation(String value, boolean inverse, String range) {
+            this.value = value;
+            this.inverse = inverse;
+            this.range = range;
+        }
+
+        public String value() {
+            return value;
+        }
+
+        public boolean inverse() {
+            return inverse;
+        }
+
+        public String range() {
+            return range;
+        }
+
+        public Class<? extends Annotation> annotationType() {
+            return rdf.class;
+        }
+
+        /** as specified by Annotation.equals */
+        public boolean equals(Object o) {
+            if (!(o instanceof rdf)) {
+                return false;
+            }
+            rdf r = (rdf) o;
+            return value.equals(r.value()) && inverse == r.inverse() && range.equals(r.range());
+        }
+
+        /** as specified by Annotation.hashCode */
+        public int hashCode() {
+            return ((127 * "value".hashCode()) ^ value.hashCode()) +
+                    ((127 * "inverse".hashCode()) ^ Boolean.valueOf(inverse).hashCode()) +
+                    ((127 * "range".hashCode()) ^ range.hashCode());
+        }
+
+        public String toString() {
+            return "@" + rdf.class.getName() + "(value=" + value + ", inverse=" + inverse + ", range=" + range + ")";
+        }
+    }
+
+    /**
+     * Read all the index resources visible to the class loader
+     *
+     * @return the merged index. Resources that cannot be read are logged and skipped.
+     */
+    static ClassIndex load(ClassLoader loader) {
+        ClassIndex index = new ClassIndex();
+        try {
+            Enumeration<URL> resources = (loader == null) ? ClassLoader.getSystemResources(RESOURCE)
+                    : loader.getResources(RESOURCE);
+            while (resources.hasMoreElements()) {
+                URL url = resources.nextElement();
+                Reader in = null;
+                try {
+                    in = new InputStreamReader(url.openStream(), "UTF-8");
+                    index.read(in);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "could not read class index " + url, e);
+                } finally {
+                    if (in != null) {
+                        in.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "could not list the class indexes", e);
+        }
+        return index;
+    }
+
+    /**
+     * add the entries read to this index
+     */
+    void read(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+            String[] cols = line.split("\t", -1);
+            if ("class".equals(cols[0]) && cols.length >= 3) {
+                addClass(cols[1], cols[2]);
+            } else if ("field".equals(cols[0]) && cols.length >= 8) {
+                addField(cols[1], new FieldEntry(cols[2], cols[3], cols[4], cols[5],
+                        Boolean.valueOf(cols[6]), Boolean.valueOf(cols[7])));
+            } else {
+                log.warning("skipping unknown class index entry: " + line);
+            }
+        }
+    }
+
+    void write(Writer out) throws IOException {
+        out.write("#sommer class index\n");
+        for (Map.Entry<String, String> e : types.entrySet()) {
+            out.write("class\t" + e.getKey() + "\t" + e.getValue() + "\n");
+            for (FieldEntry f : fieldsOf(e.getKey())) {
+                out.write("field\t" + e.getKey() + "\t" + f.name + "\t" + f.relation + "\t" + f.javaType +
+                        "\t" + f.range + "\t" + f.inverse + "\t" + f.functional + "\n");
+            }
+        }
+        out.flush();
+    }
+
+    void addClass(String className, String typeUri) {
+        types.put(className, typeUri);
+    }
+
+    void addField(String className, FieldEntry field) {
+        List<FieldEntry> list = fields.get(className);
+        if (list == null) {
+            list = new ArrayList<FieldEntry>();
+            fields.put(className, list);
+        }
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).name.equals(field.name)) {
+                list.set(i, field);
+                return;
+            }
+        }
+        list.add(field);
+    }
+
+    /**
+     * forget a class and its fields, before they are described again
+     */
+    void removeClass(String className) {
+        types.remove(className);
+        fields.remove(className);
+    }
+
+    /**
+     * @return the rdf type uri of each class name, in the order of the index
+     */
+    Map<String, String> types() {
+        return Collections.unmodifiableMap(types);
+    }
+
+    /**
+     * @return the @rdf fields declared by the class, or an empty list
+     */
+    List<FieldEntry> fieldsOf(String className) {
+        List<FieldEntry> list = fields.get(className);
+        return (list == null) ? Collections.<FieldEntry>emptyList() : Collections.unmodifiableList(list);
+    }
+}
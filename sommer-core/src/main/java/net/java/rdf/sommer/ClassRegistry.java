@@ -0,0 +1,184 @@
+/*
+ New BSD license: http://opensource.org/licenses/bsd-license.php
+
+ Copyright (c) 2003, 2004, 2005 Sun Microsystems, Inc.
+ 901 San Antonio Road, Palo Alto, CA 94303 USA. 
+ All rights reserved.
+
+
+ Redistribution and use in source and binary forms, with or without 
+ modification, are permitted provided that the following conditions are met:
+
+ - Redistributions of source code must retain the above copyright notice, 
+  this list of conditions and the following disclaimer.
+ - Redistributions in binary form must reproduce the above copyright notice, 
+  this list of conditions and the following disclaimer in the documentation 
+  and/or other materials provided with the distribution.
+ - Neither the name of Sun Microsystems, Inc. nor the names of its contributors
+  may be used to endorse or promote products derived from this software 
+  without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ POSSIBILITY OF SUCH DAMAGE.
+*/
+package net.java.rdf.sommer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.java.rdf.annotations.rdf;
+
+/**
+ * The java classes registered for each rdf type, shared by all mappers.
+ * <p/>
+ * Registrations copy the current state into a new immutable snapshot, together with its
+ * ClassHierarchyIndex, and publish it in one volatile write. Readers, which are on the path of every
+ * object creation, just read the current snapshot and never lock. Registrations are rare, happening
+ * as classes are preloaded or as class indexes are loaded, and are serialised.
+ *
+ * @author Henry Story
+ */
+final class ClassRegistry {
+
+    private static final Logger log = Logger.getLogger(ClassRegistry.class.getName());
+
+    private volatile Snapshot snapshot = new Snapshot(new HashMap<String, List<Class>>());
+
+    /** the class indexes loaded, by class loader */
+    private final WeakHashMap<ClassLoader, LoadedIndex> indexedLoaders = new WeakHashMap<ClassLoader, LoadedIndex>();
+
+    /**
+     * The class index of a class loader. It is locked while it is loaded, so that a thread asking for it
+     * at the same time waits until its classes are registered.
+     */
+    private static final class LoadedIndex {
+        volatile boolean loaded = false;
+        /** the @rdf annotations of the fields in the class index, by class name and field name */
+        final ConcurrentHashMap<String, rdf> relations = new ConcurrentHashMap<String, rdf>();
+    }
+
+    /**
+     * Register the classes listed in the class indexes visible to the class loader, unless this was
+     * done before for that loader. The classes are loaded without being initialised.
+     *
+     * @see ClassIndex
+     */
+    void loadIndex(ClassLoader loader) {
+        loadedIndex(loader);
+    }
+
+    private LoadedIndex loadedIndex(ClassLoader loader) {
+        LoadedIndex loaded;
+        synchronized (indexedLoaders) {
+            loaded = indexedLoaders.get(loader);
+            if (loaded == null) {
+                loaded = new LoadedIndex();
+                indexedLoaders.put(loader, loaded);
+            }
+        }
+        if (loaded.loaded) {
+            return loaded;
+        }
+        synchronized (loaded) {
+            if (loaded.loaded) {
+                return loaded;
+            }
+            LinkedHashMap<Class, String> types = new LinkedHashMap<Class, String>();
+            ClassIndex index = ClassIndex.load(loader);
+            for (Map.Entry<String, String> e : index.types().entrySet()) {
+                for (ClassIndex.FieldEntry f : index.fieldsOf(e.getKey())) {
+                    loaded.relations.put(e.getKey() + '#' + f.name, f.relation());
+                }
+                try {
+                    types.put(Class.forName(e.getKey(), false, loader), e.getValue());
+                } catch (ClassNotFoundException ex) {
+                    log.log(Level.FINE, "indexed class not found " + e.getKey(), ex);
+                } catch (LinkageError ex) {
+                    log.log(Level.WARNING, "could not load indexed class " + e.getKey(), ex);
+                }
+            }
+            if (types.size() > 0) {
+                register(types);
+            }
+            loaded.loaded = true;
+        }
+        return loaded;
+    }
+
+    /**
+     * @return the @rdf annotation of the field of clazz as listed in the class indexes of its class loader,
+     *         or null if it is not listed
+     */
+    rdf indexedRelation(Class clazz, String fieldName) {
+        return loadedIndex(clazz.getClassLoader()).relations.get(clazz.getName() + '#' + fieldName);
+    }
+
+    /**
+     * Register classes with their rdf types. Classes already registered with the type are skipped.
+     *
+     * @param types a map from classes to the uri of the rdf type they are mapped to
+     * @return true if the registry changed
+     */
+    synchronized boolean register(Map<Class, String> types) {
+        Map<String, List<Class>> current = snapshot.classmap;
+        HashMap<String, List<Class>> next = null;
+        for (Map.Entry<Class, String> e : types.entrySet()) {
+            List<Class> list = (next == null) ? current.get(e.getValue()) : next.get(e.getValue());
+            if (list != null && list.contains(e.getKey())) {
+                continue;
+            }
+            if (next == null) {
+                next = new HashMap<String, List<Class>>(current);
+            }
+            ArrayList<Class> newList = (list == null) ? new ArrayList<Class>(1) : new ArrayList<Class>(list);
+            newList.add(e.getKey());
+            next.put(e.getValue(), Collections.unmodifiableList(newList));
+        }
+        if (next == null) {
+            return false;
+        }
+        snapshot = new Snapshot(next);
+        return true;
+    }
+
+    /**
+     * @return the classes registered for the rdf type, in the order of their registration, or null
+     */
+    List<Class> classesOf(String typeUri) {
+        return snapshot.classmap.get(typeUri);
+    }
+
+    /**
+     * @return the index of the current registrations
+     */
+    ClassHierarchyIndex index() {
+        return snapshot.index;
+    }
+
+    private static final class Snapshot {
+        final Map<String, List<Class>> classmap;
+        final ClassHierarchyIndex index;
+
+        Snapshot(HashMap<String, List<Class>> classmap) {
+            this.classmap = Collections.unmodifiableMap(classmap);
+            this.index = new ClassHierarchyIndex(classmap);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ New BSD license: http://opensource.org/licenses/bsd-license.php
+
+ Copyright (c) 2003, 2004, 2005 Sun Microsystems, Inc.
+ 901 San Antonio Road, Palo Alto, CA 94303 USA. 
+ All rights reserved.
+
+
+ Redistribution and use in source and binary forms, with or without 
+ modification, are permitted provided that the following conditions are met:
+
+ - Redistributions of source code must retain the above copyright notice, 
+  this list of conditions and the following disclaimer.
+ - Redistributions in binary form must reproduce the above copyright notice, 
+  this list of conditions and the following disclaimer in the documentation 
+  and/or other materials provided with the distribution.
+ - Neither the name of Sun Microsystems, Inc. nor the names of its contributors
+  may be used to endorse or promote products derived from this software 
+  without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ POSSIBILITY OF SUCH DAMAGE.
+*/
+package net.java.rdf.sommer;
+
+/**
+ * Options for Mapper.export.
+ * The defaults export the explicit statements of the mapper's graphs with their namespace prefixes,
+ * uncompressed, through a 64k buffer.
+ *
+ * @author Henry Story
+ */
+public class ExportOptions {
+
+   private String[] contexts = null;
+   private boolean gzip = false;
+   private int bufferSize = 64 * 1024;
+   private boolean includeInferred = false;
+   private boolean namespaces = true;
+
+   /**
+    * @return the uris of the graphs to export, or null for all the graphs of the mapper
+    */
+   public String[] getContexts() {
+      return contexts;
+   }
+
+   /**
+    * @param contexts the uris of the graphs to export, or null for all the graphs of the mapper
+    */
+   public void setContexts(String... contexts) {
+      this.contexts = contexts;
+   }
+
+   public boolean isGzip() {
+      return gzip;
+   }
+
+   /**
+    * @param gzip if the output should be gzip compressed
+    */
+   public void setGzip(boolean gzip) {
+      this.gzip = gzip;
+   }
+
+   public int getBufferSize() {
+      return bufferSize;
+   }
+
+   /**
+    * @param bufferSize the size in bytes of the buffer before the output stream
+    */
+   public void setBufferSize(int bufferSize) {
+      if (bufferSize <= 0) {
+         throw new IllegalArgumentException("buffer size must be positive, not " + bufferSize);
+      }
+      this.bufferSize = bufferSize;
+   }
+
+   public boolean isIncludeInferred() {
+      return includeInferred;
+   }
+
+   /**
+    * @param includeInferred if inferred statements should be exported too
+    */
+   public void setIncludeInferred(boolean includeInferred) {
+      this.includeInferred = includeInferred;
+   }
+
+   public boolean isNamespaces() {
+      return namespaces;
+   }
+
+   /**
+    * @param namespaces if the namespace prefixes should be written. Formats such as N-Triples don't use them,
+    *                   so turning this off saves reading them for nothing.
+    */
+   public void setNamespaces(boolean namespaces) {
+      this.namespaces = namespaces;
+   }
+}
@@ -35,6 +35,7 @@ package net.java.rdf.sommer;
 /**
  * a class whose instances specialise in mapping particular java objects to rdf objects, such as Literals or Resources.
  * This is needed since many java objects cannot be annotated. It makes the framework more flexible.
+ * Applications can register their own, for the classes the mapper does not know about.
  *
  * @author Henry Story
  */
@@ -43,7 +44,7 @@ public abstract class JavaInstanceMapper {
     RDFFactory slf;
     private Class clazz;
 
-    JavaInstanceMapper(RDFFactory slf, Class clazz) {
+    protected JavaInstanceMapper(RDFFactory slf, Class clazz) {
        this.slf = slf;
        this.clazz = clazz;
     }
@@ -63,7 +64,7 @@ public abstract class JavaInstanceMapper {
      * @param litObj an plain object that is mapped to a literal
      * @return a Literal in the object model of the implementing framework.
      */
-    abstract Object java2rdf(Object litObj);
+    protected abstract Object java2rdf(Object litObj);
 
     /**
      * Abstract methods that knows how to turn an rdf object into a java equivalent.
@@ -74,7 +75,7 @@ public abstract class JavaInstanceMapper {
      * @param rdfObj an plain object that is mapped to a literal
      * @return a Literal in the object model of the implementing framework.
      */
-    abstract Object rdf2java(Object rdfObj);
+    protected abstract Object rdf2java(Object rdfObj);
 
 
 }
@@ -35,6 +35,7 @@ import net.java.rdf.annotations.rdf;
 import java.io.*;
 import static java.text.MessageFormat.format;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -225,6 +226,7 @@ public class JavassistClassRewriter {
 
                clazz.addMethod(getter);
                clazz.addMethod(setter);
+               EditorTranslator.addFieldConstants(clazz, fld);
                markChanged(clazz);
 
                getFieldMethod.put(fld, getter);
@@ -235,6 +237,9 @@ public class JavassistClassRewriter {
                throw e;
             }
          }
+         if (rdffields) {
+            EditorTranslator.addNullBits(clazz);
+         }
       }
 
       //add RDFSerialisable and SommerMapable interfaces 
@@ -266,6 +271,11 @@ public class JavassistClassRewriter {
          }
       }
 
+      //the known null bits of a class are private to it, so each class clears its own
+      for (CtClass clazz : annotatedClasses) {
+         EditorTranslator.addClearKnownNullsMethod(clazz);
+      }
+
 //      ArrayList<CtClass> sorthem = new ArrayList<CtClass>(annotatedClasses);
 //      Collections.sort(sorthem, new Comparator<CtClass>() {
 ////not a total order, but it's not a hash, so it should be ok?
@@ -390,6 +400,78 @@ public class JavassistClassRewriter {
             } //todo: leakage possible due to exception thrown before
          }
       }
+
+      //7. Write the index of the mapped classes
+      writeClassIndex(annotatedClasses, clzzes, baseOutputDir);
+   }
+
+   /**
+    * Add the mapped classes to the class index of the output directory, so that mappers know them
+    * without their being preloaded. Classes already in the index, from earlier runs, stay in it.
+    * @param classes the classes with @rdf annotations
+    * @param files the files the classes were read from
+    * @param baseOutputDir the output directory, or null if the classes were rewritten in place
+    * @see ClassIndex
+    */
+   static void writeClassIndex(Collection<CtClass> classes, Map<CtClass, String> files,
+           String baseOutputDir) throws IOException, NotFoundException, ClassNotFoundException {
+      if (classes.isEmpty()) {
+         return;
+      }
+      String root = baseOutputDir;
+      if (root == null) {
+         //the classes were rewritten in place, so find the directory their packages are in
+         CtClass first = classes.iterator().next();
+         String file = new File(files.get(first)).getAbsolutePath();
+         String suffix = File.separator + first.getName().replace('.', File.separatorChar) + ".class";
+         if (!file.endsWith(suffix)) {
+            log.warning("could not find the class directory of " + file + ", no class index written");
+            return;
+         }
+         root = file.substring(0, file.length() - suffix.length());
+      }
+      File indexFile = new File(root, ClassIndex.RESOURCE.replace('/', File.separatorChar));
+      ClassIndex index = new ClassIndex();
+      if (indexFile.exists()) {
+         Reader in = new InputStreamReader(new FileInputStream(indexFile), "UTF-8");
+         try {
+            index.read(in);
+         } finally {
+            in.close();
+         }
+      }
+      for (CtClass clazz : classes) {
+         index.removeClass(clazz.getName());
+         rdf ann = SommerEditor.getRdf(clazz.getAnnotations());
+         index.addClass(clazz.getName(),
+                 (ann == null) ? "urn:java:" + clazz.getName().replace('$', '.') : ann.value());
+         for (CtField fld : clazz.getDeclaredFields()) {
+            if (Modifier.isStatic(fld.getModifiers())) {
+               continue;
+            }
+            Object[] annotations = fld.getAnnotations();
+            rdf fann = SommerEditor.getRdf(annotations);
+            if (fann == null) {
+               continue;
+            }
+            boolean isFunctional = false;
+            for (Object o : annotations) {
+               if (o instanceof functional) {
+                  isFunctional = true;
+               }
+            }
+            index.addField(clazz.getName(), new ClassIndex.FieldEntry(fld.getName(), fann.value(),
+                    fld.getType().getName(), fann.range(), fann.inverse(), isFunctional));
+         }
+      }
+      indexFile.getParentFile().mkdirs();
+      Writer out = new OutputStreamWriter(new FileOutputStream(indexFile), "UTF-8");
+      try {
+         index.write(out);
+      } finally {
+         out.close();
+      }
+      log.info("wrote class index " + indexFile);
    }
 
    private static void descendThrough(File dir, List<File> files) {
@@ -524,25 +606,147 @@ class EditorTranslator implements Translator {
       clas.instrument(m_editor);
    }
 
+   /**
+    * Add the static constants the getter and setter of an @rdf field use, so that they need no reflection.
+    * These are initialised once in the class initializer.
+    */
+   static void addFieldConstants(CtClass clazz, CtField fld) throws CannotCompileException, NotFoundException {
+      String args = "(" + clazz.getName() + ".class, \"" + fld.getName() + "\")";
+      CtField relation = CtField.make("private static final net.java.rdf.annotations.rdf " +
+              relationConstant(fld) + ";", clazz);
+      clazz.addField(relation, CtField.Initializer.byExpr("net.java.rdf.sommer.MapperManager.rewrittenRelation" + args));
+      if (SommerEditor.isCollection(fld.getType())) {
+         CtField type = CtField.make("private static final java.lang.reflect.Type " +
+                 typeConstant(fld) + ";", clazz);
+         clazz.addField(type, CtField.Initializer.byExpr("net.java.rdf.sommer.MapperManager.rewrittenFieldType" + args));
+      }
+   }
+
+   /** the name of the static constant holding the @rdf annotation of fld */
+   static String relationConstant(CtField fld) {
+      return "sommerRdf_" + fld.getName();
+   }
+
+   /** the name of the static constant holding the generic type of a collection field fld */
+   static String typeConstant(CtField fld) {
+      return "sommerType_" + fld.getName();
+   }
+
+   /**
+    * The @rdf fields of a class whose getters remember that the mapper found no value for them, numbered
+    * by their position in the list.
+    * @return the names of the fields
+    */
+   static List<String> nullableFields(CtClass clazz) throws ClassNotFoundException, NotFoundException {
+      ArrayList<String> result = new ArrayList<String>();
+      for (CtField fld : clazz.getDeclaredFields()) {
+         if (SommerEditor.getRdf(fld.getAnnotations()) != null &&
+                 !Modifier.isStatic(fld.getModifiers()) &&
+                 !SommerEditor.isCollection(fld.getType())) {
+            result.add(fld.getName());
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Add the bits remembering which fields of the class are known to be null in the graph.
+    * Up to 64 fields fit in a long, more need an array of them.
+    */
+   static void addNullBits(CtClass clazz) throws CannotCompileException, NotFoundException, ClassNotFoundException {
+      int count = nullableFields(clazz).size();
+      if (count == 0) {
+         return;
+      }
+      if (count <= 64) {
+         clazz.addField(CtField.make("private long sommerNullBits = 0L;", clazz));
+      } else {
+         CtField bits = CtField.make("private long[] sommerNullBitArray;", clazz);
+         clazz.addField(bits, CtField.Initializer.byExpr("new long[" + ((count + 63) >> 6) + "]"));
+      }
+   }
+
+   /**
+    * Make sommerClearKnownNulls() clear the null bits of this class too.
+    * The topmost class declares it together with setSommerRewriteMapper, the others override it.
+    */
+   static void addClearKnownNullsMethod(CtClass clazz) throws CannotCompileException, NotFoundException, ClassNotFoundException {
+      int count = nullableFields(clazz).size();
+      if (count == 0) {
+         return;
+      }
+      String clear = (count <= 64) ? "sommerNullBits = 0L;"
+              : "for (int i = 0; i < sommerNullBitArray.length; i++) { sommerNullBitArray[i] = 0L; }";
+      try {
+         CtMethod declared = clazz.getDeclaredMethod("sommerClearKnownNulls", new CtClass[0]);
+         declared.setBody("{ " + clear + " }");
+      } catch (NotFoundException e) {
+         String sup = "";
+         try {
+            clazz.getSuperclass().getMethod("sommerClearKnownNulls", "()V");
+            sup = "super.sommerClearKnownNulls(); ";
+         } catch (NotFoundException ex) {
+            //a superclass rewritten by an older version: nothing to call
+         }
+         clazz.addMethod(CtNewMethod.make("protected void sommerClearKnownNulls() { " + sup + clear + " }", clazz));
+      }
+      JavassistClassRewriter.markChanged(clazz);
+   }
+
+   /**
+    * @return the java code for the word holding the known null bit of fld, the bit mask, and its complement
+    */
+   private static String[] nullBit(CtField fld) throws ClassNotFoundException, NotFoundException {
+      List<String> names = nullableFields(fld.getDeclaringClass());
+      int i = names.indexOf(fld.getName());
+      String word = (names.size() <= 64) ? "sommerNullBits" : "sommerNullBitArray[" + (i >> 6) + "]";
+      long mask = 1L << (i & 63);
+      return new String[]{word, "0x" + Long.toHexString(mask) + "L", "0x" + Long.toHexString(~mask) + "L"};
+   }
+
+   /** @return the java condition that fld is known to be null */
+   static String isKnownNull(CtField fld) throws ClassNotFoundException, NotFoundException {
+      String[] bit = nullBit(fld);
+      return "(" + bit[0] + " & " + bit[1] + ") != 0L";
+   }
+
+   /** @return the java statement remembering whether fld is known to be null, depending on its current value */
+   static String rememberNull(CtField fld) throws ClassNotFoundException, NotFoundException {
+      String[] bit = nullBit(fld);
+      return "if ( this." + fld.getName() + " == null ) { " + bit[0] + " = " + bit[0] + " | " + bit[1] + "; } " +
+              " else { " + bit[0] + " = " + bit[0] + " & " + bit[2] + "; }";
+   }
+
    static void addSetSommerMapperMethod(CtClass clazz) throws CannotCompileException, NotFoundException {
-      CtField nullhash = CtField.make("protected java.util.HashSet sommerNullFieldHash;", clazz);
-      clazz.addField(nullhash);
+      //overriden by the classes with known null bits
+      clazz.addMethod(CtNewMethod.make("protected void sommerClearKnownNulls() { }", clazz));
 
       CtField fld = CtField.make("protected net.java.rdf.sommer.RewriteMapper sommerRewriteMapper = null;", clazz);
       clazz.addField(fld);
 
+      //the identity of the object, so that the mapper need not look it up
+      CtField resFld = CtField.make("protected java.lang.Object sommerResource = null;", clazz);
+      clazz.addField(resFld);
+
       CtMethod m = CtNewMethod.make(
               "public void setSommerRewriteMapper(net.java.rdf.sommer.RewriteMapper  map) { " +
+              "if (map != sommerRewriteMapper) { sommerResource = null; }\n" +
               "sommerRewriteMapper = map;\n " +
-              "if (map==null) { \n" +
-              "  sommerNullFieldHash = null; \n" +
-              "} else { \n" +
-              "  sommerNullFieldHash = new java.util.HashSet(); " +
-              "}\n" +
+              "sommerClearKnownNulls();\n" +
               "}\n",
               clazz);
       clazz.addMethod(m);
 
+      clazz.addMethod(CtNewMethod.make(
+              "public net.java.rdf.sommer.RewriteMapper getSommerRewriteMapper() { return sommerRewriteMapper; }",
+              clazz));
+      clazz.addMethod(CtNewMethod.make(
+              "public java.lang.Object getSommerResource() { return sommerResource; }",
+              clazz));
+      clazz.addMethod(CtNewMethod.make(
+              "public void setSommerResource(java.lang.Object resource) { sommerResource = resource; }",
+              clazz));
+
 //      CtClass[] serialisableArgs = new CtClass[]{rewriteMapperClzz};
 //
 //     CtMethod mtd = clazz.getDeclaredMethod("setSommerRewriteMapper", serialisableArgs);
@@ -570,44 +774,38 @@ class EditorTranslator implements Translator {
                  append("if (sommerRewriteMapper==null) { \n   " +
                  "this." + fld.getName() + "= $1;\n").
                  append("} else {\n");
-         String line1 = "java.lang.reflect.Field field = " + clazz.getName() +
-                 ".class.getDeclaredField( \"" + fld.getName() + "\" );";
          String line2 = null;
          if (SommerEditor.isCollection(fld.getType())) {
             if (!SommerEditor.containsFunctional(annotations)) {
                line2 = format("this." + fld.getName() +
                        "=  ( {0} ) sommerRewriteMapper.replaceVirtualCollection( " +
                        "   this,  " +
-                       "  (net.java.rdf.annotations.rdf)field.getAnnotation(net.java.rdf.annotations.rdf.class)," +
+                       relationConstant(fld) + "," +
                        "   {1}, " +
                        "   $1, " +
-                       "   field.getGenericType() ); ",
+                       typeConstant(fld) + " ); ",
                        fld.getType().getName(),
                        fld.getName());
             } else {
                line2 = format("this." + fld.getName() +
                        "=  ( {0} ) sommerRewriteMapper.setCollectionField( " +
                        "   this,  " +
-                       "  (net.java.rdf.annotations.rdf)field.getAnnotation(net.java.rdf.annotations.rdf.class)," +
+                       relationConstant(fld) + "," +
                        "   {1}, " +
-                       "   field.getGenericType() ); ",
+                       typeConstant(fld) + " ); ",
                        fld.getType().getName(),
                        fld.getName());
             }
-            stMtd.append("try { \n" + line1 + "\n" + line2 +
-                    "\n    } catch ( java.lang.NoSuchFieldException e) { e.printStackTrace(); }");
+            stMtd.append(line2 + "\n");
          } else {
             line2 = format("this." + fld.getName() +
                     "= ( {0} ) sommerRewriteMapper.setField(" + "{1}.class," +
                     "this," +
-                    "(net.java.rdf.annotations.rdf)field.getAnnotation(net.java.rdf.annotations.rdf.class)," +
+                    relationConstant(fld) + "," +
                     "$1); ", fld.getType().getName(), fld.getType().getName());
-            line2 += "if ( this. " + fld.getName() +
-                    "== null ) { sommerNullFieldHash.add(field); } " +
-                    " else { sommerNullFieldHash.remove(field); }";
+            line2 += rememberNull(fld);
 
-            stMtd.append("try { \n" + line1 + "\n" + line2 +
-                    "\n    } catch ( java.lang.NoSuchFieldException e) { e.printStackTrace(); }");
+            stMtd.append(line2 + "\n");
          }
          stMtd.append("   }\n"); //end of else;
          stMtd.append("}"); //end of method body;
@@ -642,8 +840,6 @@ class EditorTranslator implements Translator {
                  "    return " + fld.getName() + ";\n" +
                  "} else if (" + fld.getName() + " == null) {\n";
 
-         String line1 = "java.lang.reflect.Field field = " + clazz.getName() +
-                 ".class.getDeclaredField( \"" + fld.getName() + "\" );";
          if (SommerEditor.isCollection(fld.getType())) {
             String line2;
             if (!SommerEditor.containsFunctional(fld.getAnnotations())) {
@@ -654,45 +850,31 @@ class EditorTranslator implements Translator {
                line2 = fld.getName() +
                        " = sommerRewriteMapper.createVirtualCollection(" +
                        " this, " +
-                       "(net.java.rdf.annotations.rdf)field.getAnnotation(net.java.rdf.annotations.rdf.class)," +
+                       relationConstant(fld) + "," +
                        fld.getName() + ", " +
-                       "field.getGenericType() );";
+                       typeConstant(fld) + " );";
             } else {
                line2 = fld.getName() +
                        "= sommerRewriteMapper.getCollectionField(" +
                        " this, " +
-                       "(net.java.rdf.annotations.rdf)field.getAnnotation(net.java.rdf.annotations.rdf.class)," +
+                       relationConstant(fld) + "," +
                        fld.getName() + ", " +
-                       "field.getGenericType() );";
+                       typeConstant(fld) + " );";
             }
             gtMtd.append(line0 +
-                    " try { \n" +
-                    line1 + "\n" +
-                    line2 + "\n" +
-                    " } catch ( java.lang.NoSuchFieldException e ) { \n" +
-                    "    e.printStackTrace(); \n" +
-                    "    return null;\n" +
-                    "}");
+                    line2 + "\n");
          } else {
-            String line2 = "if (sommerNullFieldHash.contains(field)) { return null; }";
+            String line2 = "if (" + isKnownNull(fld) + ") { return null; }";
 
             line2 += fld.getName() + "= (" + fld.getType().getName() +
                     ") sommerRewriteMapper.getField( " +
                     fld.getType().getName() + ".class ," + "this, " +
-                    "(net.java.rdf.annotations.rdf)field.getAnnotation(net.java.rdf.annotations.rdf.class)," +
+                    relationConstant(fld) + "," +
                     fld.getName() + "); ";
-            line2 += "if ( this. " + fld.getName() +
-                    "== null ) { sommerNullFieldHash.add(field); } " +
-                    " else { sommerNullFieldHash.remove(field); }";
+            line2 += rememberNull(fld);
 
             gtMtd.append(line0 +
-                    " try { \n" +
-                    line1 + "\n" +
-                    line2 + "\n" +
-                    " } catch ( java.lang.NoSuchFieldException e ) { \n" +
-                    "    e.printStackTrace(); \n" +
-                    "    return null;\n" +
-                    " } ");
+                    line2 + "\n");
          }
          gtMtd.append("   }\n"); //end of else;
          gtMtd.append("return " + fld.getName() + ";\n" +
@@ -33,12 +33,14 @@
 package net.java.rdf.sommer;
 
 import java.io.PrintStream;
+import net.java.rdf.sommer.util.CloseableIterator;
 import net.java.rdf.sommer.util.GraphUpdateException;
 import net.java.rdf.sommer.util.ParseException;
 import net.java.rdf.sommer.util.Statement;
 
 import java.util.Collection;
 import java.util.List;
+import java.io.File;
 import java.io.Reader;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -148,11 +150,76 @@ public interface Mapper {
      */
     public void importInto(Reader r, String baseUri, String mimeType, String context) throws IOException, GraphUpdateException, ParseException;
 
+    /**
+     * Told about the progress of a bulk import
+     */
+    interface ImportListener {
+
+       /**
+        * called after each commit
+        * @param statements the number of statements committed so far
+        */
+       void progress(long statements);
+    }
+
+    /**
+     * Import a large amount of rdf into the write graph.
+     * The rdf is parsed on another thread while it is being inserted, and committed every commitInterval
+     * statements, so that the import does not need one huge transaction. If the import fails the statements
+     * committed until then remain in the graph.
+     * Cannot be called during a batch.
+     *
+     * @param r a Reader on the rdf
+     * @param baseUri the base to resolve relative uri from
+     * @param mimeType of the rdf serialisation
+     * @param commitInterval the number of statements to commit at a time
+     * @param listener told about the progress after each commit, or null
+     * @return the number of statements imported
+     */
+    public long bulkImport(Reader r, String baseUri, String mimeType, int commitInterval, ImportListener listener)
+            throws IOException, GraphUpdateException, ParseException;
+
+    /**
+     * Import a large rdf file into the write graph, as bulkImport(Reader,...) does.
+     * N-Triples files are memory mapped and parsed in parallel, in chunks of whole lines.
+     *
+     * @param file the rdf file
+     * @param baseUri the base to resolve relative uri from
+     * @param mimeType of the rdf serialisation
+     * @param commitInterval the number of statements to commit at a time
+     * @param listener told about the progress after each commit, or null
+     * @return the number of statements imported
+     */
+    public long bulkImport(File file, String baseUri, String mimeType, int commitInterval, ImportListener listener)
+            throws IOException, GraphUpdateException, ParseException;
+
     /**
      *  Delete this graph, and all objects associated to it.
      */
     public boolean clear();
 
+    /**
+     * Start a batch of changes. Until the matching commit() the statements added and removed by
+     * mapping, setting fields and changing collections are buffered, redundant changes are coalesced,
+     * and everything is then written to the store in one transaction.
+     * Reading from the mapper during the batch sees the changes made so far.
+     * Batches can be nested, in which case only the outermost commit writes the changes.
+     * All threads using this mapper take part in the same batch.
+     */
+    public void beginBatch();
+
+    /**
+     * Commit the changes made since beginBatch()
+     * @throws GraphUpdateException if the changes could not be written, in which case they are rolled back
+     */
+    public void commit() throws GraphUpdateException;
+
+    /**
+     * Abandon the changes made since the outermost beginBatch().
+     * Objects mapped during the batch remain mapped to the names they were given.
+     */
+    public void rollback();
+
     /**
      *
      * note: We should be able to ask the object directly now that it implements SommerMapable
@@ -197,6 +264,41 @@ public interface Mapper {
     
     public <T> Collection<T> getAllObjectsOfType(Class<T> clazz);
 
+    /**
+     * A page of the objects of the given type, in the order of their ids.
+     * @param clazz the type of the objects
+     * @param offset the number of objects to skip
+     * @param limit the maximum number of objects to return, or a negative number for no limit
+     */
+    public <T> Collection<T> getAllObjectsOfType(Class<T> clazz, long offset, int limit);
+
+    /**
+     * A page of the objects of the given type, ordered by the value of one of their @rdf fields.
+     * The paging and ordering is done by the store, so only the objects of the page are created.
+     * Objects without a value for the field come first.
+     * @param clazz the type of the objects
+     * @param orderBy the name of an @rdf field of clazz, or null to order by id
+     * @param offset the number of objects to skip
+     * @param limit the maximum number of objects to return, or a negative number for no limit
+     * @throws IllegalArgumentException if clazz has no @rdf field named orderBy
+     */
+    public <T> Collection<T> getAllObjectsOfType(Class<T> clazz, String orderBy, long offset, int limit);
+
+    /**
+     * @return the number of objects of the given type, counted without creating them
+     */
+    public long countObjectsOfType(Class<?> clazz);
+
+    /**
+     * Iterate over all objects of the given type, mapping them only as they are consumed,
+     * so that very large numbers of objects need not be held in memory.
+     * Stores may not allow changes to the graph while the iterator is open, so close it
+     * before changing anything, unless it was iterated to the end.
+     * @param clazz the type of the objects
+     * @return an iterator that should be closed if not exhausted
+     */
+    public <T> CloseableIterator<T> iterateObjectsOfType(Class<T> clazz);
+
 
     /**
      * Insert the object and all its dependent objects into the graph
@@ -213,6 +315,14 @@ public interface Mapper {
      */
     public boolean addObjects(Object... objects);
 
+    /**
+     * Insert all objects, and all their dependent objects, in one batch.
+     * This is the way to add large numbers of objects: their statements are written in one transaction.
+     * @param objects
+     * @return false if the objects could not be written, in which case none of them were
+     */
+    public boolean addObjects(Iterable<?> objects);
+
 
     /**
      * Add the following statements to the writeable graph.
@@ -262,6 +372,18 @@ public interface Mapper {
     */
     void output(Writer out);
 
+    /**
+     * Export the statements of the graphs, streaming them from the store to the output.
+     * Unlike output() this reports failures, and the output stream is left open.
+     *
+     * @param out the stream to write to
+     * @param mimeType of the rdf serialisation: N-Triples is the fastest to write and read back
+     * @param options what to export and how, or null for the defaults
+     * @throws IOException if writing to out failed
+     * @throws GraphUpdateException if the statements could not be read from the store
+     */
+    void export(OutputStream out, String mimeType, ExportOptions options) throws IOException, GraphUpdateException;
+
 
     /**
      * The Size in triples of the graph, mapped to.
@@ -304,12 +426,21 @@ public interface Mapper {
      */
     <T> Collection<T> queryByExample(Object eg, Class<T> clazz);
 
+    /**
+     * As queryByExample, but mapping the objects only as they are consumed.
+     * The same restrictions on changing the graph apply as for iterateObjectsOfType.
+     * @return an iterator that should be closed if not exhausted
+     */
+    <T> CloseableIterator<T> iterateByExample(Object eg, Class<T> clazz);
+
 
     /**
      * Sometimes one needs to preload a bunch of annotated classes in order to take account of hierarchies.
      * We want to be able to have the most specific java class possible instantiate an rdf object. But we cannot walk
      * down a java class hierarchy.
      * see Mapping.mostSpecific(clazz,uri); 
+     * Classes rewritten by the JavassistClassRewriter are listed in the class index it writes
+     * (META-INF/sommer/classes.idx), and are known without being preloaded.
      * TODO: this should be on the MapperManager class. It should not be specific to different graphs (otherwise it is going to get
      * tedious as one used different mappers)
      */
@@ -33,9 +33,12 @@
 package net.java.rdf.sommer;
 
 
-import java.util.HashMap;
+import java.lang.reflect.Field;
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import net.java.rdf.annotations.rdf;
 import net.java.rdf.sommer.Mapper.Init;
 
 /**
@@ -48,9 +51,16 @@ public abstract class MapperManager  {
     protected static transient Logger log = Logger.getLogger(MapperManager.class.getName());
 
     /**
-     * We keep a map of graph name to mapper objects
+     * We keep a map of graph name to mapper objects.
+     * It is read without locking; mappers are created and added to it while holding its lock.
      */
-    protected static HashMap<String, Mapping> graphMapper = new HashMap<String, Mapping>();
+    protected static final ConcurrentHashMap<String, Mapping> graphMapper = new ConcurrentHashMap<String, Mapping>();
+
+    /**
+     * the key of the mapper of the default graph, whose url is null, as the concurrent map has no null keys.
+     * It cannot be the url of a graph, as urls have no spaces or angle brackets.
+     */
+    private static final String DEFAULT_GRAPH = "<default graph>";
 
     //
     //Client available methods
@@ -126,29 +136,77 @@ public abstract class MapperManager  {
        //of which contexts belong together...
        //or perhaps that should be optional...
         
-        Mapping m = graphMapper.get(urls[0]);
-        if (m == null) {          
-            m = (Mapping) init.create(urls[0]);
-            graphMapper.put(urls[0], m);
+        String key = (urls[0] == null) ? DEFAULT_GRAPH : urls[0];
+        Mapping m = graphMapper.get(key);
+        if (m == null) {
+            //only one mapper may ever be created per graph, so creation is serialised
+            synchronized (graphMapper) {
+                m = graphMapper.get(key);
+                if (m == null) {
+                    m = (Mapping) init.create(urls[0]);
+                    graphMapper.put(key, m);
+                }
+            }
         }
-        return m;     
+        return m;
     }
 
     //
     // Method for rewriter
     //
 
+    /**
+     * Find a field of a rewritten class. The rewriter initialises static constants of the rewritten
+     * classes with this, so that the generated accessors need no reflection.
+     * @param clazz the rewritten class
+     * @param name the name of an @rdf field declared in that class
+     * @return the field, made accessible
+     */
+    public static Field rewrittenField(Class clazz, String name) {
+        try {
+            Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new Error("rewritten class " + clazz.getName() + " has no field " + name, e);
+        }
+    }
+
+    /**
+     * @return the @rdf annotation of a field of a rewritten class, as listed in the class index written
+     * when it was rewritten, or else as found on the field
+     * @see #rewrittenField(Class, String)
+     */
+    public static rdf rewrittenRelation(Class clazz, String name) {
+        rdf relation = Mapping.classes.indexedRelation(clazz, name);
+        if (relation != null) {
+            return relation;
+        }
+        return rewrittenField(clazz, name).getAnnotation(rdf.class);
+    }
+
+    /**
+     * @return the generic type of a field of a rewritten class
+     * @see #rewrittenField(Class, String)
+     */
+    public static Type rewrittenFieldType(Class clazz, String name) {
+        return rewrittenField(clazz, name).getGenericType();
+    }
 
     /**
      * Every object o if mapped belongs to a graph.
-     * We may not need this later if we add information right into the object concerning which field the object
-     * is mapped to. For the moment this is a call for the rewriter only.
+     * Mapped objects know the last mapper that named them, so finding it takes constant time.
+     * Only if that mapper no longer maps the object are the other mappers asked in turn.
      * @param o
      * @return  The RewriteMapper in which the object is mapped, or null
-     *
-     * Todo, add the mapper info to the objects directly
      */
     public static Mapper getMapperForObject(Object o) {
+        if (o instanceof SommerMapable) {
+            RewriteMapper rm = ((SommerMapable) o).getSommerRewriteMapper();
+            if (rm instanceof Mapping && ((Mapping) rm).isMapped(o)) {
+                return (Mapping) rm;
+            }
+        }
         for (Mapping m: graphMapper.values()) {
             if (m.isMapped(o)) {
                 return m;
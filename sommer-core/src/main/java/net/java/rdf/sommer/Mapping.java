@@ -34,8 +34,8 @@ package net.java.rdf.sommer;
 
 import net.java.rdf.annotations.rdf;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
@@ -45,10 +45,21 @@ import java.util.List;
  */
 public abstract class Mapping implements Mapper, RewriteMapper, RDFFactory {
 
-    static final HashMap<String, List<Class>> classmap = new HashMap<String, List<Class>>();
+    /** the classes mapped to each rdf type, shared by all mappers */
+    static final ClassRegistry classes = new ClassRegistry();
+
+    /**
+     * Mappers know the classes listed in the class indexes written by the class rewriter,
+     * so these need not be preloaded.
+     */
+    protected Mapping() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        classes.loadIndex((loader == null) ? Mapping.class.getClassLoader() : loader);
+    }
 
 
     public void preload(Class... classes) {
+          LinkedHashMap<Class, String> types = new LinkedHashMap<Class, String>();
           for (Class c: classes) {
               rdf ann = (rdf) c.getAnnotation(rdf.class);
               String type;
@@ -58,13 +69,9 @@ public abstract class Mapping implements Mapper, RewriteMapper, RDFFactory {
               } else {
                  type = ann.value();
               }
-              List<Class> list = classmap.get(type);
-              if (list == null) {
-                  list = new ArrayList<Class>();
-                  classmap.put(type,list);
-              }
-              list.add(c);
+              types.put(c, type);
           }
+          Mapping.classes.register(types);
     }
 
 
@@ -85,26 +92,8 @@ public abstract class Mapping implements Mapper, RewriteMapper, RDFFactory {
      * @param typeUris
      * @return a subclass of clazz or clazz itself
      */
-    Class mostSpecificSubClass(Class clazz, ArrayList<String> typeUris) {
-        ArrayList<Class> mappedClasses = new ArrayList<Class>();
-        for(String uri: typeUris) {
-            List<Class> classes = classmap.get(uri);
-            if (classes != null) mappedClasses.addAll(classes);
-        }
-        Class solution =clazz;
-        boolean foundOne = false;
-        //now we have to find the most specific class
-        for (Class candidate: mappedClasses) {
-             if (solution.isAssignableFrom(candidate)) {
-                solution = candidate;
-                foundOne = true;
-            }
-        }
-        if (foundOne) {
-        	return solution;
-        } else {
-        	return null;
-        }
+    Class mostSpecificSubClass(Class clazz, Collection<String> typeUris) {
+        return classes.index().mostSpecificSubClass(clazz, typeUris);
     }
 
     public void cogitate(List<Inferencer> inferenceList) {
@@ -31,8 +31,10 @@ import net.java.rdf.annotations.functional;
 import net.java.rdf.annotations.inverseFunctional;
 import net.java.rdf.annotations.rdf;
 import net.java.rdf.sommer.util.*;
+import org.openrdf.OpenRDFException;
 import org.openrdf.model.*;
 import org.openrdf.model.Statement;
+import org.openrdf.model.impl.BNodeImpl;
 import org.openrdf.model.vocabulary.OWL;
 import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.model.vocabulary.XMLSchema;
@@ -43,18 +45,24 @@ import org.openrdf.repository.RepositoryResult;
 import org.openrdf.rio.RDFFormat;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.Rio;
 import org.openrdf.rio.n3.N3Writer;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeConstants;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -62,6 +70,9 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 import java.util.logging.Level;
 import static java.util.logging.Level.FINE;
 import java.util.logging.Logger;
@@ -105,6 +116,16 @@ public class SesameMapper extends Mapping {
    //enabling duplicate filters slows things down a lot, so this should be settable
    private boolean enableDuplicateFilter = true;
 
+   /**
+    * The URIs of relations, datatypes and classes, so that each is created only once.
+    * Any string can be given as a relation, so when there are more than MAX_VOCABULARY of them they are
+    * all forgotten, and created again as they are used. The URIs of the classes are kept in an LruCache,
+    * so that the classes, and their class loaders, are not kept for ever.
+    */
+   private final ConcurrentHashMap<String, URI> vocabulary = new ConcurrentHashMap<String, URI>();
+   static final int MAX_VOCABULARY = 10000;
+   private final LruCache<Class, URI> classUris = new LruCache<Class, URI>(1000);
+
    /** leaky and dangerous as the array contents could be changed, but certainly should not be... should copy the contents*/
    public Resource[] grphs() {
       return graphs;
@@ -137,6 +158,7 @@ public class SesameMapper extends Mapping {
          this.graphs[i] = (urls[i] == null) ? null : vf.createURI(urls[i]);
       }
       this.writeGrphs = this.graphs[0];
+      this.shared = stateOf(connection());
       initInstanceMapper();
    }
    Resource writeGrphs;
@@ -164,32 +186,22 @@ public class SesameMapper extends Mapping {
          java.lang.System.arraycopy(graphs, 0, newWg, 0, graphs.length);
          newWg[graphs.length] = resrc;
          graphs = newWg;
+         cifpConstructors.clear(); //their queries read the old graphs
+         forgetFieldValues();
       }
    }
    /**
+    * The names of the mapped objects.
     * A mapping from objects to resources is one to one.
     * We only give one name to an object. The other owl:sameAs names can be found in the database.
-    */
-   private WeakHashMap<Object, Resource> obj2Resource = new WeakHashMap<Object, Resource>();
-   /**
     * A mapping from resources to objects is one to many.
     * This is because many objects can have the same name. For example
     * - 2 objects implement different classes (one way to get multiple inheritance in java)
     * - another object is created in a constructor that is an ifp or cifp and so the new object receives the
     * same name
+    * The registry is thread safe, so that many threads can map and resolve objects at once.
     */
-   private WeakHashMap<Resource, List<Object>> resource2Obj = new WeakHashMap<Resource, List<Object>>();
-   Date updateTime = new Date();
-
-   //this is really the wrong way to do this but it should do for a demo
-   public boolean isDirty(Date update) {
-      return update == null || update.before(updateTime);
-   }
-
-   void setChanged() {
-      updateTime = new Date();
-   }
-
+   private final WeakIdentityRegistry<Resource> names = new WeakIdentityRegistry<Resource>();
    /**
     * todo: It should be possible to set different repositories for different Maps. As such
     * todo: we may not want this to be static... At the same time we may also want different maps for different
@@ -198,6 +210,24 @@ public class SesameMapper extends Mapping {
     * @return
     */
    public RepositoryConnection rep() {
+      RepositoryConnection con = connection();
+      flushBatch(con);
+      return con;
+   }
+
+   /**
+    * The connection, to write to. The results still being read by iterators are read to the end
+    * and closed first, as the store may not accept writes while results are open.
+    */
+   private RepositoryConnection writeConnection() {
+      detachOpenResults();
+      return rep();
+   }
+
+   /**
+    * The connection, without writing the pending statements of a batch to it
+    */
+   private RepositoryConnection connection() {
       if (rep == null) {
          vf = init.getValueFactory();
          rep = init.getConnection();
@@ -206,11 +236,420 @@ public class SesameMapper extends Mapping {
       return rep;
    }
 
+   //
+   // Batches
+   //
+   // All threads share the one connection, so a batch belongs to the mapper rather than to a thread.
+   //
+
+   private final Object batchLock = new Object();
+   /** the statements written in the current batch, or null if there is no batch */
+   private StatementBuffer batch = null;
+   private int batchDepth = 0;
+   /** the first failure writing the batch, which makes the commit fail */
+   private RepositoryException batchFailure = null;
+
+   public void beginBatch() {
+      synchronized (batchLock) {
+         if (batchDepth++ > 0) {
+            return;
+         }
+         batch = new StatementBuffer();
+         try {
+            connection().setAutoCommit(false);
+         } catch (RepositoryException e) {
+            log.log(Level.SEVERE, "could not start a transaction", e);
+            batchFailure = e;
+         }
+      }
+   }
+
+   public void commit() throws GraphUpdateException {
+      synchronized (batchLock) {
+         if (batchDepth == 0) {
+            throw new IllegalStateException("commit called without beginBatch");
+         }
+         if (--batchDepth > 0) {
+            return;
+         }
+         RepositoryConnection con = connection();
+         RepositoryException failure = batchFailure;
+         try {
+            if (failure == null) {
+               detachOpenResults();
+               batch.flush(con, getWriteGraphs(), graphs);
+               con.commit();
+            }
+         } catch (RepositoryException e) {
+            failure = e;
+         }
+         if (failure != null) {
+            rollbackConnection(con);
+         }
+         endBatch(con);
+         if (failure != null) {
+            throw new GraphUpdateException(failure);
+         }
+      }
+   }
+
+   /**
+    * end a batch begun inside another one, whose commit or rollback will decide what happens to it
+    */
+   private void endNestedBatch() {
+      synchronized (batchLock) {
+         if (batchDepth <= 1) {
+            throw new IllegalStateException("not in a nested batch");
+         }
+         batchDepth--;
+      }
+   }
+
+   public void rollback() {
+      synchronized (batchLock) {
+         if (batchDepth == 0) {
+            throw new IllegalStateException("rollback called without beginBatch");
+         }
+         batchDepth = 0;
+         RepositoryConnection con = connection();
+         rollbackConnection(con);
+         endBatch(con);
+      }
+   }
+
+   private void rollbackConnection(RepositoryConnection con) {
+      forgetFieldValues();
+      try {
+         con.rollback();
+      } catch (RepositoryException e) {
+         log.log(Level.SEVERE, "could not roll back transaction", e); //todo: decide what exception to throw
+      }
+   }
+
+   private void endBatch(RepositoryConnection con) {
+      batch = null;
+      batchFailure = null;
+      try {
+         con.setAutoCommit(true);
+      } catch (RepositoryException e) {
+         log.log(Level.SEVERE, "could not end transaction", e); //todo: decide what exception to throw
+      }
+   }
+
+   /**
+    * Write the pending statements of the batch, if any, so that reading from the connection sees them.
+    * They remain part of the batch's transaction.
+    */
+   private void flushBatch(RepositoryConnection con) {
+      synchronized (batchLock) {
+         if (batch == null || batch.isEmpty()) {
+            return;
+         }
+         detachOpenResults();
+         try {
+            batch.flush(con, getWriteGraphs(), graphs);
+         } catch (RepositoryException e) {
+            log.log(Level.SEVERE, "could not write batch", e);
+            if (batchFailure == null) {
+               batchFailure = e;
+            }
+         }
+      }
+   }
+
+   /**
+    * add the statement to the write graph, now or in the current batch
+    */
+   void addTriple(Resource subj, URI pred, Value obj) throws RepositoryException {
+      synchronized (batchLock) {
+         if (batch != null) {
+            batch.add(vf.createStatement(subj, pred, obj));
+            fieldsChanged(subj, pred, obj);
+            return;
+         }
+      }
+      writeConnection().add(subj, pred, obj, getWriteGraphs());
+      fieldsChanged(subj, pred, obj);
+   }
+
+   /**
+    * remove the statements matching the pattern from the graphs, now or in the current batch.
+    * null matches anything.
+    */
+   void removeTriples(Resource subj, URI pred, Value obj) throws RepositoryException {
+      synchronized (batchLock) {
+         if (batch != null) {
+            if (subj != null && pred != null && obj != null) {
+               batch.remove(vf.createStatement(subj, pred, obj));
+            } else {
+               batch.remove(subj, pred, obj);
+            }
+            fieldsChanged(subj, pred, obj);
+            return;
+         }
+      }
+      if (!inference && pred != null && (subj == null || obj == null)) {
+         //find what is removed, so that only the field values of the nodes concerned are forgotten
+         List<Statement> removed = explicitStatements(subj, pred, obj);
+         writeConnection().remove(subj, pred, obj, graphs);
+         for (Statement st : removed) {
+            fieldsChanged(st.getSubject(), pred, st.getObject());
+         }
+      } else {
+         writeConnection().remove(subj, pred, obj, graphs);
+         fieldsChanged(subj, pred, obj);
+      }
+   }
+
+   private List<Statement> explicitStatements(Resource subj, URI pred, Value obj) throws RepositoryException {
+      ArrayList<Statement> result = new ArrayList<Statement>();
+      RepositoryResult<Statement> it = connection().getStatements(subj, pred, obj, false, graphs);
+      try {
+         while (it.hasNext()) {
+            result.add(it.next());
+         }
+      } finally {
+         it.close();
+      }
+      return result;
+   }
+
+   //
+   // Changes and field values
+   //
+   // Every write through a mapper is a tick of a clock, recorded against the relations of the nodes it
+   // changes, so that a version of each (node, relation) can be given. The clock and the versions belong to
+   // the connection, so that mappers sharing it (see SesameMemorySailInit) see each other's writes.
+   // The value of a single valued field is read from the store the first time only, and remembered until
+   // a mapper writes a statement with that subject and relation. A value is only valid if it was read
+   // after the last change that concerns it. Changes to the store made other than through the mappers of
+   // the connection are not seen, and with an inferencing store any write may change the value of other
+   // fields, so then nothing is remembered.
+   //
+
+   /** the value remembered for fields known to have no value */
+   private static final Value NO_VALUE = new BNodeImpl("sommer-no-value");
+
+   static final class FieldKey {
+      final Resource node;
+      final URI relation;
+      final boolean inverse;
+      final int hash;
+
+      FieldKey(Resource node, URI relation, boolean inverse) {
+         this.node = node;
+         this.relation = relation;
+         this.inverse = inverse;
+         this.hash = (node.hashCode() * 31 + relation.hashCode()) * 31 + (inverse ? 1 : 0);
+      }
+
+      public int hashCode() {
+         return hash;
+      }
+
+      public boolean equals(Object o) {
+         if (!(o instanceof FieldKey)) {
+            return false;
+         }
+         FieldKey k = (FieldKey) o;
+         return hash == k.hash && inverse == k.inverse && node.equals(k.node) && relation.equals(k.relation);
+      }
+   }
+
+   /**
+    * A field value with the time it was read, or the time the field changed if the value is null
+    */
+   static final class FieldValue {
+      final Value value;
+      final long time;
+
+      FieldValue(Value value, long time) {
+         this.value = value;
+         this.time = time;
+      }
+   }
+
+   private final LruCache<FieldKey, FieldValue> fieldValues = new LruCache<FieldKey, FieldValue>(100000);
+   /** the number of versions kept. When there are more, they are forgotten, and all get the time they were forgotten at. */
+   static final int MAX_VERSIONS = 100000;
+
+   /**
+    * The state shared by all the mappers writing to a connection: the results open on it,
+    * and the versions of the relations changed through it.
+    */
+   static final class ConnectionState {
+      /**
+       * The iterators whose results are open. They are weakly referenced, as abandoned iterators
+       * close their results when they are garbage collected.
+       */
+      final Map<MappingIterator, Boolean> openResults = new WeakHashMap<MappingIterator, Boolean>();
+      final AtomicLong clock = new AtomicLong();
+      /** the last time each (node, relation) changed */
+      final ConcurrentHashMap<FieldKey, Long> versions = new ConcurrentHashMap<FieldKey, Long>();
+      volatile long versionFloor = 0;
+      /** the last time anything changed */
+      volatile long lastChange = 0;
+      /** the last time a relation changed for nodes that were not known */
+      final ConcurrentHashMap<URI, Long> relationChanged = new ConcurrentHashMap<URI, Long>();
+      /** the last time all relations changed */
+      volatile long allChanged = 0;
+
+      void newVersion(FieldKey key, long now) {
+         if (versions.size() >= MAX_VERSIONS) {
+            versionFloor = now;
+            versions.clear();
+         }
+         versions.put(key, now);
+      }
+
+      long version(FieldKey key) {
+         long version = allChanged;
+         Long changed = relationChanged.get(key.relation);
+         if (changed != null && changed > version) {
+            version = changed;
+         }
+         Long exact = versions.get(key);
+         long v = (exact == null) ? versionFloor : exact;
+         return (v > version) ? v : version;
+      }
+   }
+
+   /** the state of each connection. Connections are weakly referenced. */
+   private static final Map<RepositoryConnection, ConnectionState> connectionStates =
+         new WeakHashMap<RepositoryConnection, ConnectionState>();
+
+   /**
+    * The state shared by the mappers of the connection of this mapper. The connection of a mapper does not
+    * change, so it is looked up once, rather than on every read.
+    */
+   private final ConnectionState shared;
+
+   /**
+    * @return the state shared by the mappers of the connection
+    */
+   private static ConnectionState stateOf(RepositoryConnection con) {
+      synchronized (connectionStates) {
+         ConnectionState state = connectionStates.get(con);
+         if (state == null) {
+            state = new ConnectionState();
+            connectionStates.put(con, state);
+         }
+         return state;
+      }
+   }
+
+   /**
+    * @return the value remembered for the field, NO_VALUE if it is known to have none, or null if it is not known
+    */
+   private Value rememberedFieldValue(FieldKey key) {
+      if (inference || key == null) {
+         return null;
+      }
+      FieldValue fv = fieldValues.get(key);
+      if (fv == null || fv.value == null || fv.time < shared.version(key)) {
+         return null;
+      }
+      return fv.value;
+   }
+
+   /**
+    * remember a field value, unless the field changed after the time the value was read at
+    */
+   private void rememberFieldValue(FieldKey key, Value value, long readTime) {
+      if (inference || key == null) {
+         return;
+      }
+      synchronized (fieldValues) {
+         FieldValue old = fieldValues.get(key);
+         if (old == null || old.time <= readTime) {
+            fieldValues.put(key, new FieldValue(value, readTime));
+         }
+      }
+   }
+
+   /**
+    * Forget the field values that a change of the statements matching the pattern affects.
+    * Called after the change. null matches anything.
+    */
+   private void fieldsChanged(Resource subj, URI pred, Value obj) {
+      ConnectionState state = shared;
+      long now = state.clock.incrementAndGet();
+      if (pred == null) {
+         state.allChanged = now;
+         fieldValues.clear();
+      } else if (subj == null || obj == null) {
+         state.relationChanged.put(pred, now);
+      } else {
+         FieldKey key = new FieldKey(subj, pred, false);
+         fieldValues.put(key, new FieldValue(null, now));
+         state.newVersion(key, now);
+         if (obj instanceof Resource) {
+            key = new FieldKey((Resource) obj, pred, true);
+            fieldValues.put(key, new FieldValue(null, now));
+            state.newVersion(key, now);
+         }
+      }
+      state.lastChange = now;
+   }
+
+   /**
+    * The version of the relations of a node, which is different after every change of them
+    * made through a mapper of this connection, even in the same millisecond.
+    * Versions only increase, so a version read before reading the relations from the store tells
+    * whether what was read may be out of date.
+    *
+    * @param node     the node
+    * @param relation the relation
+    * @param inverse  true for the relations to the node, false for those from it
+    * @return the version
+    */
+   public long version(Resource node, URI relation, boolean inverse) {
+      if (inference) {
+         return shared.lastChange; //inferred relations may change with any statement
+      }
+      return shared.version(new FieldKey(node, relation, inverse));
+   }
+
+   /**
+    * forget all field values, after changes to the store that are not known in detail
+    */
+   private void forgetFieldValues() {
+      ConnectionState state = shared;
+      state.allChanged = state.clock.incrementAndGet();
+      state.lastChange = state.allChanged;
+      fieldValues.clear();
+   }
+
+   /**
+    * The inferencers write to the store directly, so the field values read before are forgotten
+    * once they have run.
+    */
+   @Override
+   public void cogitate(List<Inferencer> inferenceList) {
+      try {
+         detachOpenResults(); //the inferencers write to the connection
+         super.cogitate(inferenceList);
+      } finally {
+         forgetFieldValues();
+      }
+   }
+
+   /**
+    * commit, unless in a batch whose commit will do it
+    */
+   private void commitUnlessBatching() throws RepositoryException {
+      synchronized (batchLock) {
+         if (batch == null) {
+            connection().commit();
+         }
+      }
+   }
+
    public void importFrom(Reader r, String baseUri, String mimeType) throws IOException, GraphUpdateException, net.java.rdf.sommer.util.ParseException {
       try {
-         rep().add(r, baseUri, RDFFormat.forMIMEType(mimeType), getWriteGraphs());
-         rep.commit();
-         setChanged();
+         writeConnection().add(r, baseUri, RDFFormat.forMIMEType(mimeType), getWriteGraphs());
+         forgetFieldValues();
+         commitUnlessBatching();
       } catch (RDFParseException e) {
          log.severe("error line=" + e.getLineNumber() + " col=" +
                  e.getColumnNumber());
@@ -223,12 +662,12 @@ public class SesameMapper extends Mapping {
    public void importInto(Reader r, String baseUri, String mimeType, String context) throws IOException, GraphUpdateException, ParseException {
       try {
          Resource ctxtRes = vf.createURI(context);
-         rep.clear(ctxtRes); //todo: should really be cleared? Works ok for Beatnik, but...
+         writeConnection().clear(ctxtRes); //todo: should really be cleared? Works ok for Beatnik, but...
 
          rep().add(r, baseUri, RDFFormat.forMIMEType(mimeType), ctxtRes);
-         rep.commit();
+         forgetFieldValues();
+         commitUnlessBatching();
          addContext(context);
-         setChanged();
       } catch (RDFParseException e) {
          log.severe("error line=" + e.getLineNumber() + " col=" +
                  e.getColumnNumber());
@@ -238,6 +677,48 @@ public class SesameMapper extends Mapping {
       }
    }
 
+   public long bulkImport(Reader r, String baseUri, String mimeType, int commitInterval, ImportListener listener)
+           throws IOException, GraphUpdateException, ParseException {
+      RDFFormat format = rdfFormat(mimeType);
+      try {
+         return bulkLoader(commitInterval, listener).load(r, baseUri, format);
+      } finally {
+         forgetFieldValues();
+      }
+   }
+
+   public long bulkImport(File file, String baseUri, String mimeType, int commitInterval, ImportListener listener)
+           throws IOException, GraphUpdateException, ParseException {
+      RDFFormat format = rdfFormat(mimeType);
+      try {
+         return bulkLoader(commitInterval, listener).load(file, baseUri, format);
+      } finally {
+         forgetFieldValues();
+      }
+   }
+
+   /**
+    * @return the rdf format of the mime type
+    * @throws IllegalArgumentException if there is none
+    */
+   private static RDFFormat rdfFormat(String mimeType) {
+      RDFFormat format = RDFFormat.forMIMEType(mimeType);
+      if (format == null) {
+         throw new IllegalArgumentException("no rdf format for mime type " + mimeType);
+      }
+      return format;
+   }
+
+   private BulkLoader bulkLoader(int commitInterval, ImportListener listener) {
+      synchronized (batchLock) {
+         if (batch != null) {
+            throw new IllegalStateException("a bulk import cannot be part of a batch");
+         }
+      }
+      RepositoryConnection con = writeConnection();
+      return new BulkLoader(con, vf, getWriteGraphs(), commitInterval, listener);
+   }
+
    /**
     * note this clear here only clears what was written to the graph.
     * it does not remove all the facts from the read only graphs. Is this more useful that what we wanted before?
@@ -245,10 +726,15 @@ public class SesameMapper extends Mapping {
     * @return
     */
    public boolean clear() {
-      obj2Resource.clear();
-      resource2Obj.clear();
+      for (Object o : names.getObjects()) {
+         if (o instanceof SommerMapable && ((SommerMapable) o).getSommerRewriteMapper() == this) {
+            ((SommerMapable) o).setSommerResource(null);
+         }
+      }
+      names.clear();
       try {
-         rep().clear(getWriteGraphs());  //todo: if we could would we want to restore the deletions of the graphs we wrote to?
+         writeConnection().clear(getWriteGraphs());
+         forgetFieldValues();  //todo: if we could would we want to restore the deletions of the graphs we wrote to?
       } catch (RepositoryException e) {
          log.log(Level.WARNING, "could not clear graph " + graphs, e); //todo: decide what exception to throw
          return false;
@@ -273,7 +759,7 @@ public class SesameMapper extends Mapping {
       if (newColl instanceof RDFCollection) {
          return newColl;
       }
-      URI rel = vf.createURI(relation.value());
+      URI rel = vocabularyURI(relation.value());
       RDFCollection<T> wrapped;
       Resource id = (Resource) map(sourceObj);
       //what should I really do if coll is null? return null perhaps.
@@ -286,9 +772,9 @@ public class SesameMapper extends Mapping {
       //NOTE THE RELATIONS ON THE OBJECT RELATED ARE NOT REMOVED!
       try {
          if (relation.inverse()) {
-            rep().remove((Resource) null, rel, id, graphs);
+            removeTriples(null, rel, id);
          } else {
-            rep().remove(id, rel, null, graphs);
+            removeTriples(id, rel, null);
          }
       } catch (RepositoryException e) {
          e.printStackTrace(); //todo: decide what exception to throw
@@ -299,9 +785,9 @@ public class SesameMapper extends Mapping {
       //add the relation from the object to the collection
       try {
          if (relation.inverse()) {
-            rep().add(collId, rel, id, getWriteGraphs());
+            addTriple(collId, rel, id);
          } else {
-            rep().add(id, rel, collId, getWriteGraphs());
+            addTriple(id, rel, collId);
          }
       } catch (RepositoryException e) {
          e.printStackTrace(); //todo: decide what exception to throw
@@ -323,7 +809,7 @@ public class SesameMapper extends Mapping {
          log.warning("createVirtualCollection was called twice! This should not happen");
          return (RDFCollection<T>) oldFieldValue;
       }
-      URI uri = vf.createURI(relation.value());
+      URI uri = vocabularyURI(relation.value());
       //the collection is just a way to collect multiple relations from the object
       Resource id = (Resource) map(thiz);
       return new RDFCollection<T>(this, oldFieldValue, ClassAnalysis.collectionType(fieldType), thiz, uri, relation.inverse());
@@ -336,7 +822,7 @@ public class SesameMapper extends Mapping {
       Resource id = (Resource) map(thiz);
       RepositoryResult<Statement> si = null;
       try {
-         URI uri = vf.createURI(relation.value());
+         URI uri = vocabularyURI(relation.value());
          si = (relation.inverse()) ? rep().getStatements(null, uri, id, inference, graphs)
                  : rep().getStatements(id, uri, null, inference, graphs);
          if (si.hasNext()) {
@@ -378,7 +864,7 @@ public class SesameMapper extends Mapping {
          if (relation.range().length() != 0) {
             throw new Error("@rdf parameter with no value cannot be of type literal");
          }
-         if (!obj2Resource.containsKey(obj)) {
+         if (nameOf(obj) == null) {
             //todo: but what if the object allready has a name, and someone is giving it a new name?
             //then we just name this object
             java.net.URI name = (java.net.URI) value;
@@ -386,14 +872,14 @@ public class SesameMapper extends Mapping {
             return value;
          } //else if we have an infering database it will be able to infer the properties on the blank node
       }
-      uri = vf.createURI(relation.value());
+      uri = vocabularyURI(relation.value());
       Resource objId = (Resource) map(obj);
 
       try {
          if (relation.inverse()) {
-            rep().remove((Resource) null, uri, objId, graphs);
+            removeTriples(null, uri, objId);
          } else {
-            rep().remove(objId, uri, null, graphs);
+            removeTriples(objId, uri, null);
          }
       } catch (RepositoryException e) {
          e.printStackTrace(); //todo: decide what exception to throw
@@ -405,10 +891,10 @@ public class SesameMapper extends Mapping {
          try {
             if (relation.inverse()) {
                Value val = map(value);
-               rep().add((Resource) val, uri, objId, getWriteGraphs());
+               addTriple((Resource) val, uri, objId);
             } else {
                Value val = map(value, relation.range());
-               rep().add(objId, uri, val, getWriteGraphs());
+               addTriple(objId, uri, val);
             }
          } catch (RepositoryException e) {
             e.printStackTrace(); //todo: decide what exception to throw
@@ -475,19 +961,27 @@ public class SesameMapper extends Mapping {
                }
                return null;
             }
+            URI rel = vocabularyURI(relation.value());
+            Resource id = (Resource) ((relation.inverse()) ? map(sourceObj, relation.range()) : map(sourceObj));
+            FieldKey key = (id == null) ? null : new FieldKey(id, rel, relation.inverse());
+            Value object = rememberedFieldValue(key);
+            if (object != null) {
+               return (object == NO_VALUE) ? null : map(object, fieldClass);
+            }
+            long readTime = shared.clock.get();
             if (!relation.inverse()) {
-               Resource id = (Resource) map(sourceObj);
-               stmtIt = rep().getStatements(id, vf.createURI(relation.value()), null, inference, graphs);
+               stmtIt = rep().getStatements(id, rel, null, inference, graphs);
             } else {
-               Resource id = (Resource) map(sourceObj, relation.range());
-               stmtIt = rep().getStatements(null, vf.createURI(relation.value()), id, inference, graphs);
+               stmtIt = rep().getStatements(null, rel, id, inference, graphs);
             }
+            object = NO_VALUE;
             if (stmtIt.hasNext()) {
                Statement first = stmtIt.next();
-               Value object = (relation.inverse()) ? first.getSubject() : first.getObject();
+               object = (relation.inverse()) ? first.getSubject() : first.getObject();
                fieldVal = map(object, fieldClass);
                log.fine("returning field " + fieldVal);
             }
+            rememberFieldValue(key, object, readTime);
          } catch (MalformedURLException e) {
             e.printStackTrace(); //todo: decide what exception to throw
          } catch (URISyntaxException e) {
@@ -521,16 +1015,29 @@ public class SesameMapper extends Mapping {
       if (!(obj instanceof Class)) { //though we will want to do something like this even for classes!
          SommerMapable mapable = (SommerMapable) obj;
          mapable.setSommerRewriteMapper(this);
+         mapable.setSommerResource(id);
       }
-      obj2Resource.put(obj, id);
-      List<Object> names = resource2Obj.get(id);
-      if (names == null) {
-         names = new LinkedList();
-         resource2Obj.put(id, names);
-      }
-      if (!names.contains(obj)) {
-         names.add(obj);
+      names.put(obj, id);
+   }
+
+   /**
+    * The name of a mapped object.
+    * Rewritten objects mapped by this mapper carry their name, so only other objects need the registry.
+    *
+    * @param obj
+    * @return the name of the object or null if it is not mapped
+    */
+   private Resource nameOf(Object obj) {
+      if (obj instanceof SommerMapable) {
+         SommerMapable mapable = (SommerMapable) obj;
+         if (mapable.getSommerRewriteMapper() == this) {
+            Resource id = (Resource) mapable.getSommerResource();
+            if (id != null) {
+               return id;
+            }
+         }
       }
+      return names.get(obj);
    }
 
    //
@@ -542,7 +1049,7 @@ public class SesameMapper extends Mapping {
       assert (argTypes.length == values.length);
       log.fine("in cifpName: looking for a name for " + thiz + " of type " +
               clazz);
-      Resource existingName = obj2Resource.get(thiz);
+      Resource existingName = nameOf(thiz);
       if (existingName != null) {
          log.fine("cifpName: " + thiz + " was allready mapped to " +
                  existingName);
@@ -581,82 +1088,117 @@ public class SesameMapper extends Mapping {
     */
    private Resource getCIFPValue(Class clazz, Class[] argTypes, Object[] values) {
       assert (argTypes.length == values.length);
-      Constructor cons;
-      try {
-         cons = clazz.getConstructor(argTypes);
-      } catch (NoSuchMethodException e) {
-         e.printStackTrace(); //todo: decide what exception to throw
+      CifpConstructor cc = cifpConstructorOf(clazz, argTypes);
+      if (cc == null) {
+         log.warning("no constructor of " + clazz + " with @rdf arguments " + Arrays.toString(argTypes)); //todo: decide what exception to throw
          return null;
       }
-      rdf[] rdfs = ClassAnalysis.filterRdfAnnotations(cons.getParameterAnnotations());
-
-      HashSet<Value> result = null;
-
-      for (int i = 0; i < rdfs.length; i++) {
-         URI rel = vf.createURI(rdfs[i].value()); //todo check for inverses
-         Value value = map(values[i]);
-         if (value == null) {
+      Value[] ids = new Value[values.length];
+      for (int i = 0; i < values.length; i++) {
+         ids[i] = map(values[i]);
+         if (ids[i] == null) {
             return null; //one of the objects is not yet mapped.
          }
          //todo: could there be some complex situation where an object does not yet have a value but should?
-         RepositoryResult<Statement> stats = null;
-         HashSet objects = new HashSet();
-         try {
-            stats = rep().getStatements(null, rel, value, inference, graphs);
-            while (stats.hasNext()) {
-               log.fine("in cifpValue: found 1 object");
-               objects.add(stats.next().getSubject());
-            }
-         } catch (RepositoryException e) {
-            e.printStackTrace(); //todo: decide what exception to throw
-         } finally {
-            if (stats != null) {
-               try {
-                  stats.close();
-               } catch (RepositoryException e) {
-                  e.printStackTrace(); //todo: decide what exception to throw
-               }
-            }
-         }
-         if (i == 0) {
-            result = objects;
-         } else {
-            result.retainAll(objects);
-         }
-         if (result.isEmpty()) {
-            log.fine("cifpValue: returning null");
-            return null;
-         }
       }
-      return (Resource) result.iterator().next();
+      return findCifpResource(cc, ids);
    }
-   HashMap<Class, JavaInstanceMapper> literalMap = new HashMap<Class, JavaInstanceMapper>();
+   /** the mappers of the classes whose objects are literals, read by all threads */
+   final Map<Class, JavaInstanceMapper> literalMap = new ConcurrentHashMap<Class, JavaInstanceMapper>();
 
    void addJavaInstance(JavaInstanceMapper map) {
       literalMap.put(map.getObjClass(), map);
    }
 
-   /* This is general enough that it can be in a superclass, as it is no longer Sesame dependent */
-   private void initInstanceMapper() {
-      addJavaInstance(new JavaInstanceMapper(this, String.class) {
+   /**
+    * Map the objects of a class to literals, and literals to objects of the class, with the given mapper.
+    * This replaces any mapper the class had.
+    * Objects are looked up by their exact class, so a mapper for a class with subclasses should be
+    * registered for each of them.
+    *
+    * @param mapper    the mapper, for the class given by its getObjClass()
+    * @param alsoFor   other classes to use it for, such as the primitive class of a wrapper
+    */
+   public void registerLiteralMapper(JavaInstanceMapper mapper, Class... alsoFor) {
+      addJavaInstance(mapper);
+      for (Class c : alsoFor) {
+         literalMap.put(c, mapper);
+      }
+   }
 
-         Object java2rdf(Object string) {
-            return getFactory().createLiteral((String) string);
-         }
+   /**
+    * A mapper of objects to typed literals. Values that are not literals, or that are not in the lexical
+    * space of the type, map to null.
+    */
+   abstract class LiteralMapper<T> extends JavaInstanceMapper {
 
-         Object rdf2java(Object rdfObj) {
-            if (rdfObj instanceof Literal)
-               return ((Literal) rdfObj).getLabel();
+      LiteralMapper(Class<T> clazz) {
+         super(SesameMapper.this, clazz);
+      }
+
+      abstract Literal toLiteral(T obj);
+
+      /** @throws IllegalArgumentException if the literal's label is not valid for the class */
+      abstract T fromLiteral(Literal lit);
+
+      protected Object java2rdf(Object obj) {
+         return toLiteral((T) obj);
+      }
+
+      protected Object rdf2java(Object rdfObj) {
+         if (!(rdfObj instanceof Literal)) {
+            return null;
+         }
+         try {
+            return fromLiteral((Literal) rdfObj);
+         } catch (IllegalArgumentException e) {
+            log.log(Level.WARNING, rdfObj + " is not a valid " + getObjClass().getName(), e);
+            return null;
+         }
+      }
+   }
+
+   static final int SMALL_INT_MIN = -128;
+   static final int SMALL_INT_MAX = 1023;
+   /**
+    * The literals of the small ints, which are by far the most used ones, each created once.
+    * Literals are immutable, so if two threads race to create one it does not matter which is kept.
+    */
+   private final Literal[] smallInts = new Literal[SMALL_INT_MAX - SMALL_INT_MIN + 1];
+
+   Literal intLiteral(int i) {
+      if (i < SMALL_INT_MIN || i > SMALL_INT_MAX) {
+         return vf.createLiteral(i);
+      }
+      Literal lit = smallInts[i - SMALL_INT_MIN];
+      if (lit == null) {
+         lit = vf.createLiteral(i);
+         smallInts[i - SMALL_INT_MIN] = lit;
+      }
+      return lit;
+   }
+
+   /* This is general enough that it can be in a superclass, as it is no longer Sesame dependent */
+   private void initInstanceMapper() {
+      addJavaInstance(new JavaInstanceMapper(this, String.class) {
+
+         protected Object java2rdf(Object string) {
+            return getFactory().createLiteral((String) string);
+         }
+
+         protected Object rdf2java(Object rdfObj) {
+            if (rdfObj instanceof Literal)
+               return ((Literal) rdfObj).getLabel();
             else return null;
          }
       });
       addJavaInstance(new JavaInstanceMapper(this, Date.class) {
 
-         Object java2rdf(Object date) {
+         protected Object java2rdf(Object date) {
             return getFactory().createLiteralType(dateToXsdString((Date) date), XMLSchema.DATETIME.toString());
          }
 
-         Object rdf2java(Object rdfObj) {
+         protected Object rdf2java(Object rdfObj) {
             Literal lit = (Literal) rdfObj;
             assert XMLSchema.DATETIME.equals(lit.getDatatype()) : lit +
                     " is not a datetime literal";
@@ -667,11 +1209,11 @@ public class SesameMapper extends Mapping {
       });
       addJavaInstance(new JavaInstanceMapper(this, java.net.URL.class) {
 
-         Object java2rdf(Object url) {
+         protected Object java2rdf(Object url) {
             return getFactory().createLiteral(((URL) url).toExternalForm());
          }
 
-         Object rdf2java(Object rdfObj) {
+         protected Object rdf2java(Object rdfObj) {
             String uriStr;
             if (rdfObj instanceof Literal) {
                Literal lit = (Literal) rdfObj;
@@ -693,11 +1235,11 @@ public class SesameMapper extends Mapping {
       });
       addJavaInstance(new JavaInstanceMapper(this, java.net.URI.class) {
 
-         Object java2rdf(Object uri) {
+         protected Object java2rdf(Object uri) {
             return getFactory().createResource(uri.toString());
          }
 
-         Object rdf2java(Object rdfObj) {
+         protected Object rdf2java(Object rdfObj) {
             String uriStr;
             if (rdfObj instanceof Literal) {
                Literal lit = (Literal) rdfObj;
@@ -717,22 +1259,124 @@ public class SesameMapper extends Mapping {
             }
          }
       });
-      addJavaInstance(new JavaInstanceMapper(this, Integer.class) {
+      //the numbers and booleans are read with the typed accessors of the literals, and the wrappers
+      //also map the values of primitive fields
+      registerLiteralMapper(new LiteralMapper<Integer>(Integer.class) {
+         Literal toLiteral(Integer i) {
+            return intLiteral(i);
+         }
+
+         Integer fromLiteral(Literal lit) {
+            return lit.intValue();
+         }
+      }, Integer.TYPE);
+      registerLiteralMapper(new LiteralMapper<Long>(Long.class) {
+         Literal toLiteral(Long l) {
+            return vf.createLiteral(l.longValue());
+         }
 
-         Object java2rdf(Object integer) {
-            return getFactory().createLiteralType(((Integer) integer).toString(), XMLSchema.INT.toString());
+         Long fromLiteral(Literal lit) {
+            return lit.longValue();
+         }
+      }, Long.TYPE);
+      registerLiteralMapper(new LiteralMapper<Short>(Short.class) {
+         Literal toLiteral(Short s) {
+            return vf.createLiteral(s.shortValue());
          }
 
-         Object rdf2java(Object rdfObj) {
-            Literal lit = (Literal) rdfObj;
-            assert XMLSchema.INT.equals(lit.getDatatype());
-            return Integer.getInteger(lit.getLabel());
+         Short fromLiteral(Literal lit) {
+            return lit.shortValue();
+         }
+      }, Short.TYPE);
+      registerLiteralMapper(new LiteralMapper<Byte>(Byte.class) {
+         Literal toLiteral(Byte b) {
+            return vf.createLiteral(b.byteValue());
+         }
+
+         Byte fromLiteral(Literal lit) {
+            return lit.byteValue();
+         }
+      }, Byte.TYPE);
+      registerLiteralMapper(new LiteralMapper<Double>(Double.class) {
+         Literal toLiteral(Double d) {
+            return vf.createLiteral(d.doubleValue());
+         }
+
+         Double fromLiteral(Literal lit) {
+            return lit.doubleValue();
+         }
+      }, Double.TYPE);
+      registerLiteralMapper(new LiteralMapper<Float>(Float.class) {
+         Literal toLiteral(Float f) {
+            return vf.createLiteral(f.floatValue());
+         }
+
+         Float fromLiteral(Literal lit) {
+            return lit.floatValue();
+         }
+      }, Float.TYPE);
+      registerLiteralMapper(new LiteralMapper<Boolean>(Boolean.class) {
+         Literal toLiteral(Boolean b) {
+            return vf.createLiteral(b.booleanValue());
+         }
+
+         Boolean fromLiteral(Literal lit) {
+            return lit.booleanValue();
+         }
+      }, Boolean.TYPE);
+      registerLiteralMapper(new LiteralMapper<BigDecimal>(BigDecimal.class) {
+         Literal toLiteral(BigDecimal d) {
+            return vf.createLiteral(d.toPlainString(), XMLSchema.DECIMAL);
+         }
+
+         BigDecimal fromLiteral(Literal lit) {
+            return lit.decimalValue();
          }
       });
+      registerLiteralMapper(new LiteralMapper<BigInteger>(BigInteger.class) {
+         Literal toLiteral(BigInteger i) {
+            return vf.createLiteral(i.toString(), XMLSchema.INTEGER);
+         }
 
-   //
-   //todo: write a bunch more for all the other literal classes
-   //
+         BigInteger fromLiteral(Literal lit) {
+            return lit.integerValue();
+         }
+      });
+      //objects are looked up by their exact class, so the implementation classes are registered too
+      registerLiteralMapper(new LiteralMapper<XMLGregorianCalendar>(XMLGregorianCalendar.class) {
+         Literal toLiteral(XMLGregorianCalendar cal) {
+            return vf.createLiteral(cal);
+         }
+
+         XMLGregorianCalendar fromLiteral(Literal lit) {
+            return lit.calendarValue();
+         }
+      }, xmldf.newXMLGregorianCalendar().getClass());
+      registerLiteralMapper(new LiteralMapper<Calendar>(Calendar.class) {
+         Literal toLiteral(Calendar cal) {
+            GregorianCalendar gc;
+            if (cal instanceof GregorianCalendar) {
+               gc = (GregorianCalendar) cal;
+            } else {
+               gc = new GregorianCalendar(cal.getTimeZone());
+               gc.setTimeInMillis(cal.getTimeInMillis());
+            }
+            return vf.createLiteral(xmldf.newXMLGregorianCalendar(gc));
+         }
+
+         Calendar fromLiteral(Literal lit) {
+            return lit.calendarValue().toGregorianCalendar();
+         }
+      }, GregorianCalendar.class);
+      registerLiteralMapper(new LiteralMapper<byte[]>(byte[].class) {
+         Literal toLiteral(byte[] bytes) {
+            return vf.createLiteral(net.java.rdf.sommer.util.Base64.encode(bytes), XMLSchema.BASE64BINARY);
+         }
+
+         byte[] fromLiteral(Literal lit) {
+            return net.java.rdf.sommer.util.Base64.decode(lit.getLabel());
+         }
+      });
    }
 
    /**
@@ -745,7 +1389,7 @@ public class SesameMapper extends Mapping {
       if (obj == null) {
          return null;
       }
-      Value resultId = obj2Resource.get(obj);
+      Value resultId = nameOf(obj);
       if (resultId != null) {
          return resultId;
       }
@@ -769,7 +1413,7 @@ public class SesameMapper extends Mapping {
       }
       if ((obj instanceof java.net.URI || obj instanceof java.net.URL) &&
               literalType.equals(rdf.xsd + "anyURI")) {
-         return vf.createLiteral(obj.toString(), vf.createURI(literalType));
+         return vf.createLiteral(obj.toString(), vocabularyURI(literalType));
       }
       return findKnownMappedValueFor(obj);
    }
@@ -798,7 +1442,7 @@ public class SesameMapper extends Mapping {
       }
       if ((obj instanceof java.net.URI || obj instanceof java.net.URL) &&
               literalType.equals(rdf.xsd + "anyURI")) {
-         return vf.createLiteral(obj.toString(), vf.createURI(literalType));
+         return vf.createLiteral(obj.toString(), vocabularyURI(literalType));
       }
       return map(obj);
    }
@@ -852,7 +1496,7 @@ public class SesameMapper extends Mapping {
                   //todo: don't know what to do return;
                   return null;
                } else {
-                  URI rel = vf.createURI(rdfann.value());
+                  URI rel = vocabularyURI(rdfann.value());
                   Collection coll = (Collection) value;
                   if (coll != null) {
                      for (Object o : coll) {
@@ -883,7 +1527,7 @@ public class SesameMapper extends Mapping {
                }
             } else {
                //just an ifp on an object (a functional and inverse functional relation
-               URI rel = vf.createURI(rdfann.value());
+               URI rel = vocabularyURI(rdfann.value());
                RepositoryResult<Statement> clit = null;
                try {
                   Value ido = findKnownMappedValueFor(value, rdfann.range());
@@ -914,13 +1558,14 @@ public class SesameMapper extends Mapping {
    }
 
    /**
-    * take an unmapped object and add all its relations to the graph
+    * take an unmapped object and add all its relations to the graph.
+    * This is done in one pass over the fields: the object is named first, so that objects
+    * it refers to that refer back to it find its name.
     */
    class MappingSerialiser extends RdfSerialiser {
 
       Object thiz;
       Resource name;
-      HashMap<Field, Object> fieldInfo = new HashMap<Field, Object>();
 
       public MappingSerialiser(Object thiz, Resource name) {
          this.thiz = thiz;
@@ -928,75 +1573,55 @@ public class SesameMapper extends Mapping {
       }
 
       public boolean isInterestingField(Field fld) {
-         return fld.getAnnotation(rdf.class) != null;
-      }
-
-      public Object processField(Object sourceObj, Field f, Object val) {
-         if (val != null) {
-            fieldInfo.put(f, val);
+         rdf ann = fld.getAnnotation(rdf.class);
+         if (ann == null) {
+            return false;
          }
-         return null;
+         if (rdf.sameAs.equals(ann.value())) {
+            return false; //because we have already used this information to find the name
+         }
+         return true;
       }
 
-      /**
-       * This second Iteration will go through the fields and add the relations to the database
-       */
-      class SecondIteration extends RdfSerialiser {
-
-         public boolean isInterestingField(Field fld) {
-            rdf ann = fld.getAnnotation(rdf.class);
-            if (ann == null) {
-               return false;
+      public Object processField(Object sourceObj, Field fld, Object value) {
+         rdf ann = fld.getAnnotation(rdf.class);
+         Value objValue = null;
+         if (Collection.class.equals(fld.getType())) {
+            if (fld.getAnnotation(functional.class) == null) {
+               return createVirtualCollection(sourceObj, ann, (Collection) value, fld.getGenericType());
+            } else {
+               return getCollectionField(sourceObj, ann, (Collection) value, fld.getGenericType());
             }
-            if (rdf.sameAs.equals(ann.value())) {
-               return false; //because we have already used this information in a previous pass
+         } else {
+            if (value == null) {
+               return null;
             }
-            return true;
+            objValue = map(value, ann.range());
          }
-
-         public Object processField(Object sourceObj, Field fld, Object value) {
-            rdf ann = fld.getAnnotation(rdf.class);
-            Value objValue = null;
-            if (Collection.class.equals(fld.getType())) {
-               if (fld.getAnnotation(functional.class) == null) {
-                  return createVirtualCollection(sourceObj, ann, (Collection) value, fld.getGenericType());
-               } else {
-                  return getCollectionField(sourceObj, ann, (Collection) value, fld.getGenericType());
-               }
+         try {
+            if (ann.inverse()) {
+               addTriple((Resource) objValue, vocabularyURI(ann.value()), name);
             } else {
-               Object fldVal = fieldInfo.get(fld);
-               if (fldVal == null) {
-                  return null;
-               }
-               objValue = map(fldVal, ann.range());
-            }
-            try {
-               if (ann.inverse()) {
-                  rep().add((Resource) objValue, vf.createURI(ann.value()), name, getWriteGraphs());
-               } else {
-                  rep().add(name, vf.createURI(ann.value()), objValue, getWriteGraphs());
-               }
-            } catch (RepositoryException e) {
-               log.log(Level.SEVERE, "could not add relation to repository", e);
+               addTriple(name, vocabularyURI(ann.value()), objValue);
             }
-            return null;
+         } catch (RepositoryException e) {
+            log.log(Level.SEVERE, "could not add relation to repository", e);
          }
+         return null;
       }
 
-       void mapTheFields() {
+      void mapTheFields() {
          name(thiz, name);
 
          //add type field Info
-         String uriStr = getClassURI(thiz.getClass()); //todo: what about multiple annotations from superclasses
-         URI type = vf.createURI(uriStr);
+         URI type = getClassURIRef(thiz.getClass()); //todo: what about multiple annotations from superclasses
          try {
-            rep().add(name, RDF.TYPE, type, getWriteGraphs());
+            addTriple(name, RDF.TYPE, type);
          } catch (RepositoryException e) {
             e.printStackTrace(); //todo: decide what exception to throw
          }
 
-         SecondIteration it = new SecondIteration();
-         ((RdfSerialisable) thiz).rdfSerialise(it);
+         ((RdfSerialisable) thiz).rdfSerialise(this);
       }
    }
 
@@ -1012,7 +1637,7 @@ public class SesameMapper extends Mapping {
       }
       if (obj instanceof Class) { //currently I don't add this to the mapper, I probably should...
          Class c = (Class) obj;         
-         URI classUri = vf.createURI(getClassURI(c));
+         URI classUri = getClassURIRef(c);
          name(obj, classUri);
          return classUri;
       }
@@ -1027,10 +1652,12 @@ public class SesameMapper extends Mapping {
       }
 
       if (resultId == null) {
-         for (Constructor c : obj.getClass().getConstructors()) {
-            resultId = findFromCifpConstructor(c, obj);
-            if (resultId != null) {
-               break;
+         for (CifpConstructor cc : cifpConstructorsOf(obj.getClass())) {
+            if (cc.isInverseFunctional) {
+               resultId = findFromCifpConstructor(cc, obj);
+               if (resultId != null) {
+                  break;
+               }
             }
          }
       }
@@ -1038,10 +1665,7 @@ public class SesameMapper extends Mapping {
          resultId = vf.createBNode();
       }
       if (obj instanceof RdfSerialisable) {
-         MappingSerialiser mapser = new MappingSerialiser(obj, (Resource) resultId);
-         RdfSerialisable s = (RdfSerialisable) obj;
-         s.rdfSerialise(mapser);
-         mapser.mapTheFields();
+         new MappingSerialiser(obj, (Resource) resultId).mapTheFields();
       }
 
       return resultId;
@@ -1102,72 +1726,177 @@ public class SesameMapper extends Mapping {
       }
    }
 
-   private Resource findFromCifpConstructor(Constructor con, Object obj) {
-      if (con.getAnnotation(inverseFunctional.class) == null) {
-         return null;
+   /**
+    * A constructor whose arguments are all tagged @rdf, so that the values of the arguments
+    * identify the object constructed, with the query that finds that object.
+    */
+   static final class CifpConstructor {
+      final Constructor con;
+      final rdf[] rdfs;
+      final URI[] relations;
+      /** true if the constructor is tagged @inverseFunctional */
+      final boolean isInverseFunctional;
+      /** a SPARQL query for ?o, the object related to the values bound to ?v0, ?v1, ... */
+      final String query;
+
+      CifpConstructor(Constructor con, rdf[] rdfs, URI[] relations, String query) {
+         this.con = con;
+         this.rdfs = rdfs;
+         this.relations = relations;
+         this.isInverseFunctional = con.getAnnotation(inverseFunctional.class) != null;
+         this.query = query;
+      }
+   }
+
+   /**
+    * The values of the arguments of a cifp constructor
+    */
+   static final class CifpKey {
+      final Constructor con;
+      final Value[] values;
+      final int hash;
+
+      CifpKey(Constructor con, Value[] values) {
+         this.con = con;
+         this.values = values;
+         this.hash = con.hashCode() * 31 + Arrays.hashCode(values);
+      }
+
+      public int hashCode() {
+         return hash;
+      }
+
+      public boolean equals(Object o) {
+         if (!(o instanceof CifpKey)) {
+            return false;
+         }
+         CifpKey k = (CifpKey) o;
+         return hash == k.hash && con.equals(k.con) && Arrays.equals(values, k.values);
+      }
+   }
+
+   /**
+    * The cifp constructors of each class, found once per class.
+    * The queries depend on the graphs, so this is cleared when the graphs change.
+    */
+   private final ConcurrentHashMap<Class, List<CifpConstructor>> cifpConstructors = new ConcurrentHashMap<Class, List<CifpConstructor>>();
+
+   /**
+    * The resources found for the values of cifp constructors. Entries are checked before use, as the
+    * graph may have changed.
+    */
+   private final LruCache<CifpKey, Resource> cifpIdentities = new LruCache<CifpKey, Resource>(10000);
+
+   /**
+    * @return the constructors of clazz all of whose arguments have @rdf annotations
+    */
+   private List<CifpConstructor> cifpConstructorsOf(Class clazz) {
+      List<CifpConstructor> result = cifpConstructors.get(clazz);
+      if (result != null) {
+         return result;
+      }
+      result = new ArrayList<CifpConstructor>(1);
+      for (Constructor con : clazz.getConstructors()) {
+         rdf[] rdfs = ClassAnalysis.filterRdfAnnotations(con.getParameterAnnotations());
+         if (rdfs == null || rdfs.length == 0) {
+            continue;
+         }
+         URI[] relations = new URI[rdfs.length];
+         StringBuilder query = new StringBuilder("SELECT ?o ");
+         appendFromGraphs(query);
+         query.append("WHERE { ");
+         for (int i = 0; i < rdfs.length; i++) {
+            relations[i] = vocabularyURI(rdfs[i].value());
+            if (rdfs[i].inverse()) {
+               query.append("?v").append(i).append(" <").append(relations[i]).append("> ?o . ");
+            } else {
+               query.append("?o <").append(relations[i]).append("> ?v").append(i).append(" . ");
+            }
+         }
+         query.append("} LIMIT 1");
+         result.add(new CifpConstructor(con, rdfs, relations, query.toString()));
+      }
+      cifpConstructors.put(clazz, result);
+      return result;
+   }
+
+   /**
+    * @return the cifp constructor of clazz with the given argument types, or null
+    */
+   private CifpConstructor cifpConstructorOf(Class clazz, Class[] argTypes) {
+      for (CifpConstructor cc : cifpConstructorsOf(clazz)) {
+         if (Arrays.equals(cc.con.getParameterTypes(), argTypes)) {
+            return cc;
+         }
       }
+      return null;
+   }
+
+   private Resource findFromCifpConstructor(CifpConstructor cc, Object obj) {
       //if all the parameters have @rdf relations, we are ok
       if (!(obj instanceof RdfSerialisable)) {
          return null;
       }
-      rdf[] rdfs = ClassAnalysis.filterRdfAnnotations(con.getParameterAnnotations());
-      if (rdfs == null) {
-         return null; //this constructor is not of the right form
-      }
-      FilterFieldsSerialiser ser = new FilterFieldsSerialiser(rdfs);
+      FilterFieldsSerialiser ser = new FilterFieldsSerialiser(cc.rdfs);
       ((RdfSerialisable) obj).rdfSerialise(ser);
 
       if (!ser.solved()) {
          return null;
       }
-      HashMap<rdf, Value> result = ser.solution();
-
-      //now construct the query
-      StringBuilder query = new StringBuilder();
-      query.append("SELECT O FROM CONTEXT ");
-      for (int i = 0; i < graphs.length; i++) {
-         query.append('<').append(graphs[i].toString()).append('>');
-         if (i + 1 < graphs.length) {
-            query.append(',');
+      HashMap<rdf, Value> solution = ser.solution();
+      Value[] values = new Value[cc.rdfs.length];
+      for (int i = 0; i < values.length; i++) {
+         //the annotations in the solution are those of the fields, which are equivalent to those of the arguments
+         for (Entry<rdf, Value> e : solution.entrySet()) {
+            if (e.getKey().value().equals(cc.rdfs[i].value()) && e.getKey().inverse() == cc.rdfs[i].inverse()) {
+               values[i] = e.getValue();
+               break;
+            }
+         }
+         if (values[i] == null) {
+            return null;
          }
       }
-      query.append(' ');
-      boolean first = true;
-      for (Entry<rdf, Value> e : result.entrySet()) {
-         rdf ann = e.getKey();
-         Value value = e.getValue();
-         if (!first) {
-            query.append(", ");
+      return findCifpResource(cc, values);
+   }
+
+   /**
+    * Find the resource that has the relations of the cifp constructor to the values.
+    * Resources found before are remembered, and only need to be checked to be still valid.
+    *
+    * @return the resource or null if there is none
+    */
+   private Resource findCifpResource(CifpConstructor cc, Value[] values) {
+      CifpKey key = new CifpKey(cc.con, values);
+      Resource cached = cifpIdentities.get(key);
+      if (cached != null) {
+         if (hasCifpRelations(cached, cc, values)) {
+            return cached;
          }
-         if (ann.inverse()) {
-            query.append("{<").append(value).append(">} <").append(ann.value()).append("> {O}");
-         } else {
-            query.append("{O} <").append(ann.value()).append("> {");
-            if (value instanceof Literal) {
-               Literal lit = (Literal) value;
-               query.append("\"").append(lit.getLabel()).append("\"");
-               if (lit.getDatatype() != null) {
-                  query.append("^^<" + lit.getDatatype() + ">");
-               } else if (lit.getLanguage() != null &&
-                       (!"".equals(lit.getLanguage()))) {
-                  query.append("@" + lit.getLanguage());
-               }
-            } else {
-               query.append("<").append(value).append(">");
-            }
-            query.append("}");
+         cifpIdentities.remove(key);
+      }
+      if (!graphsNameable()) {
+         Resource found = findCifpResourceByStatements(cc, values);
+         if (found != null) {
+            cifpIdentities.put(key, found);
          }
-         first = false;
+         return found;
       }
-      log.fine("query=" + query.toString());
-      System.out.println("query" + query.toString());
-      //RepositoryResult<List<Value>> values = null;
-      TupleQueryResult values = null;
+      TupleQueryResult result = null;
       try {
-         TupleQuery tq = rep().prepareTupleQuery(QueryLanguage.SERQL, query.toString());
-         values = tq.evaluate();
-         if (values.hasNext()) {
-            return (Resource) values.next().getValue("O");
+         TupleQuery tq = preparedQuery(cc.query);
+         synchronized (tq) {
+            for (int i = 0; i < values.length; i++) {
+               tq.setBinding("v" + i, values[i]);
+            }
+            tq.setIncludeInferred(inference);
+            result = tq.evaluate();
+            //the result may be computed lazily from the bindings, so it is read before they can change
+            if (result.hasNext()) {
+               Resource found = (Resource) result.next().getValue("o");
+               cifpIdentities.put(key, found);
+               return found;
+            }
          }
       } catch (MalformedQueryException e) {
          e.printStackTrace(); //todo: decide what exception to throw
@@ -1175,21 +1904,90 @@ public class SesameMapper extends Mapping {
          e.printStackTrace(); //todo: decide what exception to throw
       } catch (QueryEvaluationException e) {
          e.printStackTrace(); //todo: decide what exception to throw
-
       } finally {
-         if (values != null) {
+         if (result != null) {
             try {
-               values.close();
+               result.close();
             } catch (QueryEvaluationException e) {
                e.printStackTrace(); //todo: decide what exception to throw
-
             }
          }
       }
+      return null;
+   }
 
+   /**
+    * find the resource with the cifp relations by going through the resources with the first one
+    */
+   private Resource findCifpResourceByStatements(CifpConstructor cc, Value[] values) {
+      boolean inverse = cc.rdfs[0].inverse();
+      RepositoryResult<Statement> it = null;
+      try {
+         if (!inverse) {
+            it = rep().getStatements(null, cc.relations[0], values[0], inference, graphs);
+         } else if (values[0] instanceof Resource) {
+            it = rep().getStatements((Resource) values[0], cc.relations[0], null, inference, graphs);
+         }
+         while (it != null && it.hasNext()) {
+            Statement st = it.next();
+            Value candidate = (inverse) ? st.getObject() : st.getSubject();
+            if (candidate instanceof Resource && hasCifpRelations((Resource) candidate, cc, values)) {
+               return (Resource) candidate;
+            }
+         }
+      } catch (RepositoryException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      } finally {
+         close(it);
+      }
       return null;
    }
 
+   private boolean hasCifpRelations(Resource res, CifpConstructor cc, Value[] values) {
+      try {
+         for (int i = 0; i < values.length; i++) {
+            boolean has = (cc.rdfs[i].inverse()) ?
+                    values[i] instanceof Resource &&
+                            rep().hasStatement((Resource) values[i], cc.relations[i], res, inference, graphs)
+                    : rep().hasStatement(res, cc.relations[i], values[i], inference, graphs);
+            if (!has) {
+               return false;
+            }
+         }
+         return true;
+      } catch (RepositoryException e) {
+         log.log(Level.WARNING, "could not check cifp relations of " + res, e);
+         return false;
+      }
+   }
+
+   /**
+    * The prepared queries, by query string. They belong to the connection they were prepared on.
+    */
+   private final LruCache<String, TupleQuery> preparedQueries = new LruCache<String, TupleQuery>(256);
+   private RepositoryConnection preparedOn = null;
+
+   /**
+    * Prepare a SPARQL query once, and reuse it.
+    * A prepared query keeps the bindings set on it, so set them all, evaluate the query and read
+    * the result while synchronized on it.
+    */
+   TupleQuery preparedQuery(String sparql) throws RepositoryException, MalformedQueryException {
+      RepositoryConnection con = rep();
+      synchronized (preparedQueries) {
+         if (con != preparedOn) {
+            preparedQueries.clear();
+            preparedOn = con;
+         }
+         TupleQuery tq = preparedQueries.get(sparql);
+         if (tq == null) {
+            tq = con.prepareTupleQuery(QueryLanguage.SPARQL, sparql);
+            preparedQueries.put(sparql, tq);
+         }
+         return tq;
+      }
+   }
+
    /**
     * Smush this graph.
     * Need this because don't have an inferencing engine
@@ -1207,6 +2005,20 @@ public class SesameMapper extends Mapping {
     * @return the object, or null if no object could be constructed
     */
    private <T> T map(Value value, Class<T> sprClzz) {
+      return map(value, sprClzz, null);
+   }
+
+   /**
+    * map the resource into an object of the given class
+    *
+    * @param value
+    * @param sprClzz the class or super class of any object returned
+    * @param types   the rdf types of resources fetched ahead of time, or null.
+    *                The store is only asked for the types of the value if they are not in this map.
+    * @return the object, or null if no object could be constructed
+    * @see #prefetchTypes(Collection, Class)
+    */
+   private <T> T map(Value value, Class<T> sprClzz, Map<Resource, List<String>> types) {
       JavaInstanceMapper instcMap = literalMap.get(sprClzz);
       if (instcMap != null) {
          return (T) instcMap.rdf2java(value);
@@ -1221,7 +2033,8 @@ public class SesameMapper extends Mapping {
       if (res != null) {
          return (T) res;
       }
-      Class clazz = mostSpecificSubClass(sprClzz, getTypesOf(id));
+      List<String> idTypes = (types == null) ? null : types.get(id);
+      Class clazz = mostSpecificSubClass(sprClzz, (idTypes == null) ? getTypesOf(id) : idTypes);
       if (clazz == null)
     	  return null;
 
@@ -1269,9 +2082,9 @@ public class SesameMapper extends Mapping {
 
                         try {
                            if (rdfs[i].inverse()) {
-                              clIt = rep().getStatements(null, vf.createURI(rdfs[i].value()), id, inference, graphs);
+                              clIt = rep().getStatements(null, vocabularyURI(rdfs[i].value()), id, inference, graphs);
                            } else {
-                              clIt = rep().getStatements(id, vf.createURI(rdfs[i].value()), null, inference, graphs);
+                              clIt = rep().getStatements(id, vocabularyURI(rdfs[i].value()), null, inference, graphs);
                            }
                            if (clIt.hasNext()) {
                               Statement rel = clIt.next();
@@ -1351,6 +2164,92 @@ public class SesameMapper extends Mapping {
       return rdfClasses;
    }
 
+   /**
+    * The number of resources whose types are asked for in one query
+    */
+   static final int TYPE_PREFETCH_SIZE = 64;
+
+   /**
+    * Get the known types of all the resources that will be mapped to objects of class clazz,
+    * with one query for every TYPE_PREFETCH_SIZE resources, instead of one per resource.
+    * Resources already known to the mapper, and blank nodes, which cannot be named in a query, are left out:
+    * map() asks the store for their types if it needs them.
+    *
+    * @param values the values to be mapped
+    * @param clazz  the class they are to be mapped to
+    * Nothing is fetched if the mapper reads the default context, which a query cannot be restricted to.
+    * @param values the values to be mapped
+    * @param clazz  the class they are to be mapped to
+    * @return the types of the resources as lists of URIs, or null if the values map to literals or the
+    *         types could not be fetched. Resources with no type have an empty list.
+    */
+   private Map<Resource, List<String>> prefetchTypes(Collection<? extends Value> values, Class clazz) {
+      if (literalMap.get(clazz) != null || !graphsNameable()) {
+         return null;
+      }
+      HashMap<Resource, List<String>> result = new HashMap<Resource, List<String>>();
+      ArrayList<URI> chunk = new ArrayList<URI>(TYPE_PREFETCH_SIZE);
+      for (Value v : values) {
+         if (v instanceof URI && !result.containsKey(v) && names.getObjects(v).isEmpty()) {
+            result.put((URI) v, new ArrayList<String>(2));
+            chunk.add((URI) v);
+            if (chunk.size() == TYPE_PREFETCH_SIZE) {
+               fetchTypes(chunk, result);
+               chunk.clear();
+            }
+         }
+      }
+      if (chunk.size() > 0) {
+         fetchTypes(chunk, result);
+      }
+      return result;
+   }
+
+   /**
+    * Add the types of the given resources to the lists in the types map, using one query
+    * with a union of a pattern per resource, each binding its own variable.
+    */
+   private void fetchTypes(List<URI> resources, Map<Resource, List<String>> types) {
+      StringBuilder query = new StringBuilder("SELECT * ");
+      appendFromGraphs(query);
+      query.append("WHERE { ");
+      for (int i = 0; i < resources.size(); i++) {
+         if (i > 0) {
+            query.append("UNION ");
+         }
+         query.append("{ <").append(resources.get(i)).append("> <").append(RDF.TYPE).append("> ?t")
+                 .append(i).append(" } ");
+      }
+      query.append('}');
+      TupleQueryResult values = null;
+      try {
+         TupleQuery tq = rep().prepareTupleQuery(QueryLanguage.SPARQL, query.toString());
+         tq.setIncludeInferred(inference);
+         values = tq.evaluate();
+         while (values.hasNext()) {
+            for (Binding b : values.next()) {
+               //the variable names are t followed by the index of the resource
+               int i = Integer.parseInt(b.getName().substring(1));
+               types.get(resources.get(i)).add(b.getValue().toString());
+            }
+         }
+      } catch (OpenRDFException e) {
+         //map() will ask for the types one by one
+         log.log(Level.WARNING, "could not fetch types with query " + query, e);
+         for (URI res : resources) {
+            types.remove(res);
+         }
+      } finally {
+         if (values != null) {
+            try {
+               values.close();
+            } catch (QueryEvaluationException e) {
+               e.printStackTrace(); //todo: decide what exception to throw
+            }
+         }
+      }
+   }
+
    /**
     * look in our map for an object with rdf name and the most precise subclass
     *
@@ -1360,11 +2259,7 @@ public class SesameMapper extends Mapping {
     */
    <T> T resourceGet(Resource name, Class<T> clazz) {
       T result = null;
-      List<Object> list = resource2Obj.get(name);
-      if (list == null) {
-         return null;
-      }
-      for (Object o : list) {
+      for (Object o : names.getObjects(name)) {
          if (clazz.isInstance(o)) {
             if (result != null &&
                     o.getClass().isAssignableFrom(result.getClass())) {
@@ -1382,9 +2277,9 @@ public class SesameMapper extends Mapping {
          Value id = map(obj);
          if (id != null) {
             if (inverse) {
-               rep().remove(vf.createStatement((Resource) id, relation, source), graphs);
+               removeTriples((Resource) id, relation, source);
             } else {
-               rep().remove(vf.createStatement(source, relation, id), graphs);
+               removeTriples(source, relation, id);
             }
             return true;
          } else {
@@ -1403,12 +2298,16 @@ public class SesameMapper extends Mapping {
     */
    public boolean addRelation(Resource source, URI relation, boolean inverse, Object obj) {
       Value id = map(obj);
+      if (inverse && id instanceof Literal) {
+         log.warning("the literal " + id + " cannot be the subject of " + relation);
+         return false;
+      }
       if (id != null) {
          try {
             if (inverse) {
-               rep().add((Resource) id, relation, source, getWriteGraphs());
+               addTriple((Resource) id, relation, source);
             } else {
-               rep().add(source, relation, id, getWriteGraphs());
+               addTriple(source, relation, id);
             }
          } catch (RepositoryException e) {
             //nasty things can happen here if the obj is a String for example and inverse is true
@@ -1423,16 +2322,81 @@ public class SesameMapper extends Mapping {
       }
    }
 
-   public void removeAll(Resource source, URI relation, boolean inverse) {
-//      ArrayList<Statement> buggy = new ArrayList<Statement>();
-      try {
-         //todo: deal with inferencing!
-         if (inverse) {
-            rep().remove((Resource) null, relation, source, graphs);
-         } else {
-            rep().remove(source, relation, null, graphs);
-         //need to copy everything to a collection first, due to bug in Sesame alpha 3
-         }
+   /**
+    * Remove the relations from source to some values and add relations to some objects, in one batch,
+    * so that all the statements are written together in one transaction.
+    * If a change fails with an exception the batch is rolled back, or if it is part of an enclosing batch,
+    * left for that batch to decide about.
+    * Nothing is written if a literal is to be added to an inverse relation, as a literal cannot be a subject.
+    *
+    * @param removed the values to which the relations are removed
+    * @param added   the objects to which relations are added
+    * @return false if one of the changes or the batch failed, or if nothing was written
+    */
+   public boolean changeRelations(Resource source, URI relation, boolean inverse, Collection<? extends Value> removed,
+                                  Collection<?> added) {
+      if (inverse) {
+         for (Object o : added) {
+            if (findKnownMappedValueFor(o) instanceof Literal) {
+               log.warning("the literal " + o + " cannot be the subject of " + relation);
+               return false;
+            }
+         }
+      }
+      boolean result = true;
+      boolean outermost;
+      synchronized (batchLock) {
+         outermost = (batchDepth == 0);
+         beginBatch();
+      }
+      boolean done = false;
+      try {
+         for (Value v : removed) {
+            if (inverse) {
+               if (v instanceof Resource) {
+                  removeTriples((Resource) v, relation, source);
+               }
+            } else {
+               removeTriples(source, relation, v);
+            }
+         }
+         for (Object o : added) {
+            if (!addRelation(source, relation, inverse, o)) {
+               result = false;
+            }
+         }
+         done = true;
+      } catch (RepositoryException e) {
+         log.log(Level.SEVERE, "could not change the relations of " + source, e); //todo: decide what exception to throw
+         return false;
+      } finally {
+         if (!done) {
+            if (outermost) {
+               rollback();
+            } else {
+               endNestedBatch();
+            }
+         }
+      }
+      try {
+         commit();
+      } catch (GraphUpdateException e) {
+         log.log(Level.SEVERE, "could not change the relations of " + source, e); //todo: decide what exception to throw
+         return false;
+      }
+      return result;
+   }
+
+   public void removeAll(Resource source, URI relation, boolean inverse) {
+//      ArrayList<Statement> buggy = new ArrayList<Statement>();
+      try {
+         //todo: deal with inferencing!
+         if (inverse) {
+            removeTriples(null, relation, source);
+         } else {
+            removeTriples(source, relation, null);
+         //need to copy everything to a collection first, due to bug in Sesame alpha 3
+         }
       } catch (RepositoryException e) {
          e.printStackTrace(); //todo: decide what exception to throw
 
@@ -1455,10 +2419,15 @@ public class SesameMapper extends Mapping {
       try {
          si = (inverse) ? rep().getStatements(null, relationUri, subj, inference, graphs) : rep().getStatements((Resource) subj, relationUri, null, inference, graphs);
          if (enableDuplicateFilter) si.enableDuplicateFilter();
+         ArrayList<Value> values = new ArrayList<Value>();
          while (si.hasNext()) {
             Statement s = si.next();
-            Value res = (inverse) ? s.getSubject() : s.getObject();
-            E mappedObj = map(res, clazz);
+            values.add((inverse) ? s.getSubject() : s.getObject());
+         }
+         si.close();
+         Map<Resource, List<String>> types = prefetchTypes(values, clazz);
+         for (Value res : values) {
+            E mappedObj = map(res, clazz, types);
             if (mappedObj != null) {
                result.add(mappedObj);
             }
@@ -1484,8 +2453,159 @@ public class SesameMapper extends Mapping {
       return result;
    }
 
+   /**
+    * Map the values related to subj, as getCollection does, keeping the value of each object.
+    * Duplicate values are left out.
+    *
+    * @param unmapped the values that could not be mapped to objects of the class are added to it
+    * @return the objects by their values, in the order they were read in
+    */
+   public <E> LinkedHashMap<Value, E> getMembers(Value subj, URI relationUri, boolean inverse, Class<E> clazz,
+                                                 Set<Value> unmapped) {
+      Set<Value> values = relatedValues(subj, relationUri, inverse);
+      if (relationUri.toString().equals(rdf.sameAs)) {
+         values.add(subj);
+      }
+      Map<Resource, List<String>> types = prefetchTypes(values, clazz);
+      LinkedHashMap<Value, E> result = new LinkedHashMap<Value, E>();
+      for (Value v : values) {
+         E mappedObj = map(v, clazz, types);
+         if (mappedObj != null) {
+            result.put(v, mappedObj);
+         } else {
+            unmapped.add(v);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Count the distinct values related to subj that getMembers would map to objects of the class, without
+    * creating the objects: the literals that the literal mapper of the class reads, and the resources that
+    * are mapped to objects of the class already, or whose rdf types name the class or one of its subclasses.
+    *
+    * @param limit the count at which to stop
+    * @return the number of members, or limit if there are more
+    */
+   public int countMembers(Value subj, URI relationUri, boolean inverse, Class clazz, int limit) {
+      Set<Value> values = relatedValues(subj, relationUri, inverse);
+      if (relationUri.toString().equals(rdf.sameAs)) {
+         values.add(subj);
+      }
+      int count = 0;
+      ArrayList<Value> chunk = new ArrayList<Value>(TYPE_PREFETCH_SIZE);
+      Iterator<Value> it = values.iterator();
+      while (count < limit && it.hasNext()) {
+         chunk.add(it.next());
+         if (chunk.size() == TYPE_PREFETCH_SIZE || !it.hasNext()) {
+            Map<Resource, List<String>> types = prefetchTypes(chunk, clazz);
+            for (Value v : chunk) {
+               if (count < limit && isMappable(v, clazz, types)) {
+                  count++;
+               }
+            }
+            chunk.clear();
+         }
+      }
+      return count;
+   }
+
+   /**
+    * @param types the rdf types of resources fetched ahead of time, or null
+    * @return true if map would find an object of the class for the value, not counting the objects that
+    *         could not be constructed
+    */
+   private boolean isMappable(Value value, Class clazz, Map<Resource, List<String>> types) {
+      JavaInstanceMapper instcMap = literalMap.get(clazz);
+      if (instcMap != null) {
+         return instcMap.rdf2java(value) != null;
+      }
+      if (!(value instanceof Resource)) {
+         return false;
+      }
+      Resource id = (Resource) value;
+      if (resourceGet(id, clazz) != null) {
+         return true;
+      }
+      List<String> idTypes = (types == null) ? null : types.get(id);
+      return mostSpecificSubClass(clazz, (idTypes == null) ? getTypesOf(id) : idTypes) != null;
+   }
+
+   /**
+    * Count the distinct values related to subj by the relation in the store, without mapping them to java
+    * objects. This is a count of the store: getCollection may find fewer members, as it leaves out the
+    * values that cannot be mapped to the class asked for, or more, as it only filters duplicates when
+    * enableDuplicateFilter is set.
+    * (Sesame's SPARQL has no COUNT, so the statements are counted as they are read.)
+    *
+    * @return the number of distinct related values
+    */
+   public int countRelated(Value subj, URI relationUri, boolean inverse) {
+      Set<Value> values = relatedValues(subj, relationUri, inverse);
+      if (relationUri.toString().equals(rdf.sameAs)) {
+         values.add(subj);
+      }
+      return values.size();
+   }
+
+   /**
+    * @return the distinct values related to subj in the store, without mapping them to objects
+    */
+   public Set<Value> relatedValues(Value subj, URI relationUri, boolean inverse) {
+      return relatedValues(subj, relationUri, inverse, Integer.MAX_VALUE);
+   }
+
+   /**
+    * @param limit the number of values at which to stop reading
+    * @return the distinct values related to subj in the store, at most limit of them
+    */
+   public Set<Value> relatedValues(Value subj, URI relationUri, boolean inverse, int limit) {
+      LinkedHashSet<Value> values = new LinkedHashSet<Value>();
+      RepositoryResult<Statement> si = null;
+      try {
+         if (inverse) {
+            si = rep().getStatements(null, relationUri, subj, inference, graphs);
+         } else if (subj instanceof Resource) {
+            si = rep().getStatements((Resource) subj, relationUri, null, inference, graphs);
+         }
+         while (si != null && values.size() < limit && si.hasNext()) {
+            Statement s = si.next();
+            values.add((inverse) ? s.getSubject() : s.getObject());
+         }
+      } catch (RepositoryException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      } finally {
+         close(si);
+      }
+      return values;
+   }
+
+   /**
+    * Does subj have the relation to the value in the store? The value is not mapped, so getCollection
+    * may not find a member for it if it cannot be mapped to the class asked for.
+    *
+    * @param value the related value, or null for any value
+    */
+   public boolean hasRelated(Value subj, URI relationUri, boolean inverse, Value value) {
+      if (relationUri.toString().equals(rdf.sameAs) && (value == null || value.equals(subj))) {
+         return true;
+      }
+      try {
+         if (inverse) {
+            return subj != null && (value == null || value instanceof Resource) &&
+                    rep().hasStatement((Resource) value, relationUri, subj, inference, graphs);
+         } else {
+            return subj instanceof Resource &&
+                    rep().hasStatement((Resource) subj, relationUri, value, inference, graphs);
+         }
+      } catch (RepositoryException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      }
+      return false;
+   }
+
    public boolean isMapped(Object o) {
-      return obj2Resource.containsKey(o);
+      return o != null && nameOf(o) != null;
    }
 
    public <T> T getObjectById(String uri, Class<T> clazz) {
@@ -1506,6 +2626,37 @@ public class SesameMapper extends Mapping {
       return map(id, clazz);
    }
 
+   /**
+    * @param uri the uri of a relation, datatype or class
+    * @return the URI object this mapper uses for it
+    */
+   URI vocabularyURI(String uri) {
+      URI result = vocabulary.get(uri);
+      if (result == null) {
+         if (vocabulary.size() >= MAX_VOCABULARY) {
+            vocabulary.clear();
+         }
+         result = vf.createURI(uri);
+         URI existing = vocabulary.putIfAbsent(uri, result);
+         if (existing != null) {
+            result = existing;
+         }
+      }
+      return result;
+   }
+
+   /**
+    * @return the URI of the rdf class the java class is mapped to
+    */
+   URI getClassURIRef(Class clazz) {
+      URI result = classUris.get(clazz);
+      if (result == null) {
+         result = vocabularyURI(getClassURI(clazz));
+         classUris.put(clazz, result);
+      }
+      return result;
+   }
+
    String getClassURI(Class clazz) {
       rdf ann = (rdf) clazz.getAnnotation(rdf.class);
       if (ann == null || "".equals(ann.value())) {
@@ -1516,7 +2667,7 @@ public class SesameMapper extends Mapping {
    }
 
    public <T> Collection<T> getAllObjectsOfType(Class<T> clazz) {
-      URI classType = vf.createURI(getClassURI(clazz));
+      URI classType = getClassURIRef(clazz);
 
       ArrayList<Resource> resids = new ArrayList<Resource>();
       RepositoryResult<Statement> iter = null;
@@ -1541,9 +2692,10 @@ public class SesameMapper extends Mapping {
          }
       }
 
+      Map<Resource, List<String>> types = prefetchTypes(resids, clazz);
       ArrayList<T> result = new ArrayList<T>();
       for (Resource id : resids) {
-         result.add(map(id, clazz)); //todo: first remove all sources that have a sameas relation
+         result.add(map(id, clazz, types)); //todo: first remove all sources that have a sameas relation
       }
       return result;
    }
@@ -1554,8 +2706,36 @@ public class SesameMapper extends Mapping {
    }
 
    public boolean addObjects(Object... objects) {
-      for (Object o : objects) {
-         addObject(o);
+      return addObjects(Arrays.asList(objects));
+   }
+
+   public boolean addObjects(Iterable<?> objects) {
+      boolean outermost;
+      synchronized (batchLock) {
+         outermost = (batchDepth == 0);
+         beginBatch();
+      }
+      boolean ok = false;
+      try {
+         for (Object o : objects) {
+            map(o);
+         }
+         ok = true;
+      } finally {
+         if (!ok) {
+            if (outermost) {
+               rollback();
+            } else {
+               //the batch is the caller's: leave it to them to decide what to do with it
+               endNestedBatch();
+            }
+         }
+      }
+      try {
+         commit();
+      } catch (GraphUpdateException e) {
+         log.log(Level.SEVERE, "could not add objects", e); //todo: decide what exception to throw
+         return false;
       }
       return true;
    }
@@ -1564,7 +2744,6 @@ public class SesameMapper extends Mapping {
       for (net.java.rdf.sommer.util.Statement s : statements) {
          addStatement(s);
       }
-      setChanged();
    }
 
    private void addStatement(net.java.rdf.sommer.util.Statement s) {
@@ -1598,7 +2777,7 @@ public class SesameMapper extends Mapping {
       }
 
       java.net.URI uri = s.getRelation();
-      relation = vf.createURI(uri.toString());
+      relation = vocabularyURI(uri.toString());
 
       Object obj = s.getObject();
       objVal = map(obj);
@@ -1609,7 +2788,7 @@ public class SesameMapper extends Mapping {
 
       //now we have subject relation object
       try {
-         rep().add(subRes, relation, objVal, writeGrphs);
+         addTriple(subRes, relation, objVal);
          log.info("statement added " + s);
       } catch (RepositoryException e) {
          log.severe("could not add relation " + s);
@@ -1620,7 +2799,6 @@ public class SesameMapper extends Mapping {
       for (net.java.rdf.sommer.util.Statement s : statements) {
          removeStatement(s);
       }
-      setChanged();
    }
 
    private void removeStatement(net.java.rdf.sommer.util.Statement s) {
@@ -1654,7 +2832,7 @@ public class SesameMapper extends Mapping {
       }
 
       java.net.URI uri = s.getRelation();
-      relation = vf.createURI(uri.toString());
+      relation = vocabularyURI(uri.toString());
 
       Object obj = s.getObject();
       objVal = map(obj);
@@ -1667,7 +2845,7 @@ public class SesameMapper extends Mapping {
       try {
          //todo: removing relations from write only graphs should create diff graphs.
          //todo: the behavior should be pluggable probably
-         rep().remove(subRes, relation, objVal, graphs);
+         removeTriples(subRes, relation, objVal);
       } catch (RepositoryException e) {
          log.severe("could not add relation " + s);
       }
@@ -1675,18 +2853,18 @@ public class SesameMapper extends Mapping {
    }
 
    public boolean remove(Object obj) {
-      Resource id = obj2Resource.get(obj);
+      Resource id = nameOf(obj);
       if (id == null) {
          return false;
       }
 
       try {
-         rep().remove(id, null, null, graphs);
+         removeTriples(id, null, null);
       } catch (RepositoryException e) {
          e.printStackTrace(); //todo: decide what exception to throw
       }
       try {
-         rep().remove((Resource) null, (URI) null, id, graphs);
+         removeTriples(null, null, id);
       } catch (RepositoryException e) {
          e.printStackTrace(); //todo: decide what exception to throw
       }
@@ -1695,16 +2873,10 @@ public class SesameMapper extends Mapping {
    }
 
    public boolean unmap(Object obj) {
-      Resource resource = obj2Resource.remove(obj);
+      Resource resource = names.remove(obj);
       if (resource == null) {
          return false;
       }
-      List<Object> objList = resource2Obj.get(resource);
-      objList.remove(obj);
-      assert !objList.contains(obj) : "More than one identical object in list, memory leak!";
-      if (objList.isEmpty()) {
-         resource2Obj.remove(resource);
-      }
       SommerMapable smbl = (SommerMapable) obj;
       smbl.setSommerRewriteMapper(null);
       return true;
@@ -1732,6 +2904,71 @@ public class SesameMapper extends Mapping {
       }
    }
 
+   public void export(OutputStream out, String mimeType, ExportOptions options) throws IOException, GraphUpdateException {
+      if (options == null) {
+         options = new ExportOptions();
+      }
+      RDFFormat format = rdfFormat(mimeType);
+      Resource[] contexts = graphs;
+      if (options.getContexts() != null) {
+         contexts = new Resource[options.getContexts().length];
+         for (int i = 0; i < contexts.length; i++) {
+            contexts[i] = vf.createURI(options.getContexts()[i]);
+         }
+      }
+      GZIPOutputStream gzip = null;
+      OutputStream os = out;
+      if (options.isGzip()) {
+         gzip = new GZIPOutputStream(os, options.getBufferSize());
+         os = gzip;
+      }
+      os = new BufferedOutputStream(os, options.getBufferSize());
+      RDFWriter writer = Rio.createWriter(format, os);
+      RepositoryResult<Namespace> nsIt = null;
+      RepositoryResult<Statement> stIt = null;
+      try {
+         writer.startRDF();
+         if (options.isNamespaces()) {
+            nsIt = rep().getNamespaces();
+            while (nsIt.hasNext()) {
+               Namespace ns = nsIt.next();
+               writer.handleNamespace(ns.getPrefix(), ns.getName());
+            }
+            nsIt.close();
+            nsIt = null;
+         }
+         stIt = rep().getStatements(null, null, null, options.isIncludeInferred(), contexts);
+         while (stIt.hasNext()) {
+            writer.handleStatement(stIt.next());
+         }
+         writer.endRDF();
+         os.flush();
+         if (gzip != null) {
+            gzip.finish();
+         }
+      } catch (RepositoryException e) {
+         throw new GraphUpdateException(e);
+      } catch (RDFHandlerException e) {
+         if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+         }
+         throw new GraphUpdateException(e);
+      } finally {
+         close(nsIt);
+         close(stIt);
+      }
+   }
+
+   private void close(RepositoryResult<?> it) {
+      if (it != null) {
+         try {
+            it.close();
+         } catch (RepositoryException e) {
+            e.printStackTrace(); //todo: decide what exception to throw
+         }
+      }
+   }
+
    public String graphId() {
       return graphs.toString();
    }
@@ -1740,8 +2977,8 @@ public class SesameMapper extends Mapping {
       if (mapped1 == null || mapped2 == null) {
          return false;
       }
-      Resource res1 = obj2Resource.get(mapped1);
-      Resource res2 = obj2Resource.get(mapped2);
+      Resource res1 = nameOf(mapped1);
+      Resource res2 = nameOf(mapped2);
       if (res1 == null || res2 == null) {
          return false;
       }
@@ -1761,33 +2998,54 @@ public class SesameMapper extends Mapping {
       return false;
    }
 
+   /**
+    * Builds a SPARQL query for the objects that have all the relations of an example object.
+    * The values of the example are not written into the query but bound to variables, so that the query
+    * only depends on the shape of the example: which fields are set, and how objects are nested.
+    * The query for a shape is then prepared only once.
+    */
    public class QueryByExampleSerialiser extends RdfSerialiser {
 
-      StringBuilder query = new StringBuilder("SELECT Obj0 FROM CONTEXT ");
-      boolean first = true;
+      StringBuilder patterns = new StringBuilder();
+      /** the patterns as {subject, relation URI, object}, whose ends are the variables written in the query */
+      ArrayList<Object[]> triples = new ArrayList<Object[]>();
+      ArrayList<Value> values = new ArrayList<Value>();
       int counter = 0;
       HashMap<Object, Integer> objToNum = new HashMap<Object, Integer>();
 
-      public QueryByExampleSerialiser() {
-         for (int i = 0; i < graphs.length; i++) {
-            query.append('<').append(graphs[i].toString()).append('>');
-            if (i + 1 < graphs.length) {
-               query.append(',');
-            }
-         }
-         query.append(' ');
-      }
-
       String getIdForObject(Object o) {
          if (objToNum.containsKey(o)) {
-            return "Obj" + objToNum.get(o);
+            return "?Obj" + objToNum.get(o);
          }
          objToNum.put(o, counter);
-         return "Obj" + counter++;
+         return "?Obj" + counter++;
+      }
+
+      /**
+       * @return a new variable for the value
+       */
+      String bind(Value value) {
+         values.add(value);
+         return "?v" + (values.size() - 1);
+      }
+
+      /**
+       * set the values of the example on a query prepared from this serialiser
+       */
+      void bindTo(TupleQuery tq) {
+         for (int i = 0; i < values.size(); i++) {
+            tq.setBinding("v" + i, values.get(i));
+         }
       }
 
+      /**
+       * @return the query for ?Obj0, the objects like the example
+       */
       @Override
       public String toString() {
+         StringBuilder query = new StringBuilder("SELECT ?Obj0 ");
+         appendFromGraphs(query);
+         query.append("WHERE { ").append(patterns).append('}');
          return query.toString();
       }
 
@@ -1799,11 +3057,6 @@ public class SesameMapper extends Mapping {
          if (res == null) {
             return null;
          }
-         if (!first) {
-            query.append(", ");
-         } else {
-            first = false;
-         }
          rdf ann = fld.getAnnotation(rdf.class); //should never be null since we did the check above
 
          if (Collection.class.isAssignableFrom(fld.getType())) {
@@ -1825,47 +3078,108 @@ public class SesameMapper extends Mapping {
       private Object appendRelation(Object sourceObj, rdf ann, Object res) {
          Object digdeeper = null;
          if (ann.inverse()) {
-            if (res instanceof URI || res instanceof URL) {
-               query.append("{<").append(res.toString()).append(">} <").append(ann.value()).append("> {" +
-                       getIdForObject(sourceObj) + "} ");
+            String subj;
+            if (res instanceof URI || res instanceof java.net.URI || res instanceof URL) {
+               subj = bind(vf.createURI(res.toString()));
             } else {
-               query.append("{").append(getIdForObject(res)).append("} <").append(ann.value()).append("> {" +
-                       getIdForObject(sourceObj) + "} ");
+               subj = getIdForObject(res);
                digdeeper = res;
             }
+            appendPattern(subj, ann, getIdForObject(sourceObj));
          } else {
-            query.append("{" + getIdForObject(sourceObj) + "} <").append(ann.value()).append("> {");
-            if (res instanceof Integer || res instanceof Float ||
-                    res instanceof Long || res instanceof String ||
-                    ((res instanceof java.net.URI || res instanceof java.net.URL) &&
-                    ann.range().length() > 0)) {
-               query.append("\"").append(res.toString()).append("\"");
-               if (res instanceof Integer) {
-                  query.append("^^xsd:integer");
-               } else if (res instanceof Float) {
-                  query.append("^^xsd:float");
-               } else if (res instanceof Long) {
-                  query.append("^^xsd:long");
-               } else if (res instanceof java.net.URI ||
-                       res instanceof java.net.URL) {
-                  query.append("^^xsd:anyURI");
-               }
-            } else if (res instanceof Date) {
-               query.append("\"").append(dateToXsdString((Date) res)).append("\"");
-               query.append("^^xsd:dateTime");
-            } else if (res instanceof java.net.URI ||
-                    res instanceof java.net.URL) {
-               query.append("<").append(res.toString()).append(">");
+            String subj = getIdForObject(sourceObj);
+            Value value = exampleValue(ann, res);
+            String obj;
+            if (value != null) {
+               obj = bind(value);
             } else {
-               query.append(getIdForObject(res));
+               obj = getIdForObject(res);
                digdeeper = res;
             }
-            query.append("} ");
+            appendPattern(subj, ann, obj);
          }
-
          return digdeeper;
       }
 
+      private void appendPattern(String subj, rdf ann, String obj) {
+         patterns.append(subj).append(" <").append(ann.value()).append("> ").append(obj).append(" . ");
+         triples.add(new Object[]{subj, vf.createURI(ann.value()), obj});
+      }
+
+      /**
+       * Find the values of ?Obj0 by matching the patterns with the statements, one at a time.
+       * This is for mappers whose graphs cannot be named in the query.
+       */
+      Set<Value> match() throws RepositoryException {
+         LinkedHashSet<Value> result = new LinkedHashSet<Value>();
+         if (!triples.isEmpty()) {
+            match(0, new HashMap<String, Value>(), result);
+         }
+         return result;
+      }
+
+      private void match(int i, HashMap<String, Value> bindings, Set<Value> result) throws RepositoryException {
+         if (i == triples.size()) {
+            Value found = bindings.get("?Obj0");
+            if (found != null) {
+               result.add(found);
+            }
+            return;
+         }
+         Object[] triple = triples.get(i);
+         String subjVar = (String) triple[0];
+         String objVar = (String) triple[2];
+         Value subj = valueOf(subjVar, bindings);
+         Value obj = valueOf(objVar, bindings);
+         if (subj != null && !(subj instanceof Resource)) {
+            return;
+         }
+         RepositoryResult<Statement> it = rep().getStatements((Resource) subj, (URI) triple[1], obj, inference, graphs);
+         try {
+            while (it.hasNext()) {
+               Statement st = it.next();
+               if (subj == null && obj == null && subjVar.equals(objVar) && !st.getSubject().equals(st.getObject())) {
+                  continue;
+               }
+               HashMap<String, Value> next = new HashMap<String, Value>(bindings);
+               if (subj == null) {
+                  next.put(subjVar, st.getSubject());
+               }
+               if (obj == null) {
+                  next.put(objVar, st.getObject());
+               }
+               match(i + 1, next, result);
+            }
+         } finally {
+            it.close();
+         }
+      }
+
+      /**
+       * @return the value of a variable of the query: a value of the example, or the value bound so far
+       */
+      private Value valueOf(String var, Map<String, Value> bindings) {
+         if (var.startsWith("?v")) {
+            return values.get(Integer.parseInt(var.substring(2)));
+         }
+         return bindings.get(var);
+      }
+
+      /**
+       * @return the rdf value of a field of the example, as the literal mappers write it, or null if it is
+       *         an object to be described by its own relations
+       */
+      private Value exampleValue(rdf ann, Object res) {
+         if (res instanceof java.net.URI || res instanceof java.net.URL) {
+            return findKnownMappedValueFor(res, ann.range());
+         }
+         JavaInstanceMapper mapper = literalMap.get(res.getClass());
+         if (mapper != null) {
+            return (Value) mapper.java2rdf(res);
+         }
+         return null;
+      }
+
       private void digdeeper(Object digdeeper) {
          if (digdeeper != null && digdeeper instanceof RdfSerialisable) {
             ((RdfSerialisable) digdeeper).rdfSerialise(this);
@@ -1880,14 +3194,24 @@ public class SesameMapper extends Mapping {
       RdfSerialisable serObj = (RdfSerialisable) eg;
       QueryByExampleSerialiser query = new QueryByExampleSerialiser();
       serObj.rdfSerialise(query);
+      String sparql = query.toString();
 
-      log.info("query=" + query.toString());
+      log.fine("query=" + sparql);
       TupleQueryResult values = null;
       ArrayList<Value> rvalAnswers = new ArrayList<Value>();
       try {
-         values = rep().prepareTupleQuery(QueryLanguage.SERQL, query.toString()).evaluate();
-         while (values.hasNext()) {
-            rvalAnswers.add(values.next().getValue("Obj0"));
+         if (!graphsNameable()) {
+            rvalAnswers.addAll(query.match());
+            return mapAll(rvalAnswers, clazz);
+         }
+         TupleQuery tq = preparedQuery(sparql);
+         synchronized (tq) {
+            query.bindTo(tq);
+            tq.setIncludeInferred(inference);
+            values = tq.evaluate();
+            while (values.hasNext()) {
+               rvalAnswers.add(values.next().getValue("Obj0"));
+            }
          }
       } catch (MalformedQueryException e) {
          e.printStackTrace(); //todo: decide what exception to throw
@@ -1904,16 +3228,493 @@ public class SesameMapper extends Mapping {
             }
          }
       }
-      ArrayList<T> results = new ArrayList<T>();
-      for (Value rv : rvalAnswers) {
-         T t = map(rv, clazz);
+      return mapAll(rvalAnswers, clazz);
+   }
+
+   /**
+    * @return the objects of class clazz the values map to
+    */
+   private <T> ArrayList<T> mapAll(List<Value> values, Class<T> clazz) {
+      Map<Resource, List<String>> types = prefetchTypes(values, clazz);
+      ArrayList<T> results = new ArrayList<T>(values.size());
+      for (Value rv : values) {
+         T t = map(rv, clazz, types);
          if (t != null)
         	 results.add(t);
       }
-
       return results;
    }
 
+   public <T> Collection<T> getAllObjectsOfType(Class<T> clazz, long offset, int limit) {
+      return getAllObjectsOfType(clazz, null, offset, limit);
+   }
+
+   public <T> Collection<T> getAllObjectsOfType(Class<T> clazz, String orderBy, long offset, int limit) {
+      if (!graphsNameable()) {
+         return mapAll(pageByStatements(clazz, (orderBy == null) ? null : relationOf(clazz, orderBy), offset, limit), clazz);
+      }
+      StringBuilder query = new StringBuilder("SELECT DISTINCT ?o ");
+      appendFromGraphs(query);
+      query.append("WHERE { ?o <").append(RDF.TYPE).append("> ?type . ");
+      if (orderBy != null) {
+         rdf ann = relationOf(clazz, orderBy);
+         if (ann.inverse()) {
+            query.append("OPTIONAL { ?key <").append(ann.value()).append("> ?o } } ORDER BY ?key ?o");
+         } else {
+            query.append("OPTIONAL { ?o <").append(ann.value()).append("> ?key } } ORDER BY ?key ?o");
+         }
+      } else {
+         query.append("} ORDER BY ?o");
+      }
+      if (limit >= 0) {
+         query.append(" LIMIT ").append(limit);
+      }
+      if (offset > 0) {
+         query.append(" OFFSET ").append(offset);
+      }
+      log.fine("query=" + query);
+
+      ArrayList<Value> ids = new ArrayList<Value>();
+      TupleQueryResult values = null;
+      try {
+         TupleQuery tq = rep().prepareTupleQuery(QueryLanguage.SPARQL, query.toString());
+         tq.setBinding("type", getClassURIRef(clazz));
+         tq.setIncludeInferred(inference);
+         values = tq.evaluate();
+         while (values.hasNext()) {
+            Value v = values.next().getValue("o");
+            if (v != null) {
+               ids.add(v);
+            }
+         }
+      } catch (MalformedQueryException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      } catch (RepositoryException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      } catch (QueryEvaluationException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      } finally {
+         if (values != null) {
+            try {
+               values.close();
+            } catch (QueryEvaluationException e) {
+               e.printStackTrace(); //todo: decide what exception to throw
+            }
+         }
+      }
+
+      Map<Resource, List<String>> types = prefetchTypes(ids, clazz);
+      ArrayList<T> result = new ArrayList<T>(ids.size());
+      for (Value id : ids) {
+         T obj = map(id, clazz, types);
+         if (obj != null) {
+            result.add(obj);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * The page of getAllObjectsOfType, for mappers whose graphs cannot be named in a query.
+    * All the resources of the type are read and sorted, as the query would, on the first value of the key
+    * then on the resource. Resources without a key come first.
+    *
+    * @param orderBy the relation to the key, or null
+    */
+   private List<Value> pageByStatements(Class clazz, rdf orderBy, long offset, int limit) {
+      final HashMap<Value, Value> keys = new HashMap<Value, Value>();
+      RepositoryResult<Statement> iter = null;
+      try {
+         iter = rep().getStatements(null, RDF.TYPE, getClassURIRef(clazz), inference, graphs);
+         while (iter.hasNext()) {
+            keys.put(iter.next().getSubject(), null);
+         }
+         if (orderBy != null) {
+            URI rel = vocabularyURI(orderBy.value());
+            for (Map.Entry<Value, Value> e : keys.entrySet()) {
+               close(iter);
+               iter = (orderBy.inverse()) ? rep().getStatements(null, rel, e.getKey(), inference, graphs)
+                       : rep().getStatements((Resource) e.getKey(), rel, null, inference, graphs);
+               if (iter.hasNext()) {
+                  Statement st = iter.next();
+                  e.setValue((orderBy.inverse()) ? st.getSubject() : st.getObject());
+               }
+            }
+         }
+      } catch (RepositoryException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      } finally {
+         close(iter);
+      }
+      ArrayList<Value> ids = new ArrayList<Value>(keys.keySet());
+      Collections.sort(ids, new Comparator<Value>() {
+         public int compare(Value a, Value b) {
+            int c = compareValues(keys.get(a), keys.get(b));
+            return (c != 0) ? c : compareValues(a, b);
+         }
+      });
+      int from = (int) Math.min(Math.max(offset, 0), ids.size());
+      int to = (limit < 0) ? ids.size() : (int) Math.min((long) from + limit, ids.size());
+      return ids.subList(from, to);
+   }
+
+   /**
+    * order values roughly as SPARQL's ORDER BY does: unbound values, blank nodes, URIs, then literals,
+    * numbers by their value and the rest by their label
+    */
+   static int compareValues(Value a, Value b) {
+      int c = orderRank(a) - orderRank(b);
+      if (c != 0 || a == null) {
+         return c;
+      }
+      if (a instanceof Literal) {
+         try {
+            c = Double.compare(((Literal) a).doubleValue(), ((Literal) b).doubleValue());
+            if (c != 0) {
+               return c;
+            }
+         } catch (NumberFormatException e) {
+            //not both numbers
+         }
+      }
+      return a.stringValue().compareTo(b.stringValue());
+   }
+
+   private static int orderRank(Value v) {
+      return (v == null) ? 0 : (v instanceof BNode) ? 1 : (v instanceof URI) ? 2 : 3;
+   }
+
+   public long countObjectsOfType(Class<?> clazz) {
+      long count = 0;
+      RepositoryResult<Statement> iter = null;
+      try {
+         iter = rep().getStatements(null, RDF.TYPE, getClassURIRef(clazz), inference, graphs);
+         if (enableDuplicateFilter) iter.enableDuplicateFilter();
+         while (iter.hasNext()) {
+            iter.next();
+            count++;
+         }
+      } catch (RepositoryException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      } finally {
+         close(iter);
+      }
+      return count;
+   }
+
+   /**
+    * SPARQL 1.0 has no name for the default context, so a query cannot be restricted to graphs that include it.
+    * Mappers that read the default context must then read the statements with getStatements instead.
+    *
+    * @return true if the graphs read by this mapper can all be named in a query
+    */
+   private boolean graphsNameable() {
+      for (Resource g : graphs) {
+         if (g == null) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * append the SPARQL dataset clause for the graphs read by this mapper.
+    * Only for mappers whose graphs are all nameable: the default context would be left out.
+    */
+   private void appendFromGraphs(StringBuilder query) {
+      for (Resource g : graphs) {
+         if (g != null) {
+            query.append("FROM <").append(g.toString()).append("> ");
+         }
+      }
+   }
+
+   /**
+    * @return the relation of the @rdf field of the given name in clazz or one of its superclasses
+    * @throws IllegalArgumentException if there is no such field
+    */
+   private static rdf relationOf(Class clazz, String fieldName) {
+      for (Class c = clazz; c != null; c = c.getSuperclass()) {
+         try {
+            rdf ann = c.getDeclaredField(fieldName).getAnnotation(rdf.class);
+            if (ann != null) {
+               return ann;
+            }
+            break;
+         } catch (NoSuchFieldException e) {
+            //look in the superclass
+         }
+      }
+      throw new IllegalArgumentException(clazz.getName() + " has no @rdf field " + fieldName);
+   }
+
+   public <T> CloseableIterator<T> iterateObjectsOfType(Class<T> clazz) {
+      URI classType = getClassURIRef(clazz);
+      try {
+         final RepositoryResult<Statement> iter = rep().getStatements(null, RDF.TYPE, classType, inference, graphs);
+         if (enableDuplicateFilter) iter.enableDuplicateFilter();
+         return new MappingIterator<T>(clazz) {
+
+            Value nextValue() throws OpenRDFException {
+               while (iter.hasNext()) {
+                  Resource res = iter.next().getSubject();
+                  if (res != null) {
+                     return res;
+                  }
+               }
+               return null;
+            }
+
+            void closeResult() throws OpenRDFException {
+               iter.close();
+            }
+         };
+      } catch (RepositoryException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      }
+      return new MappingIterator<T>(clazz);
+   }
+
+   /**
+    * Iterate over the objects related to subj, as getCollection would find them, mapping them only as
+    * they are reached.
+    */
+   public <E> CloseableIterator<E> iterateCollection(final Value subj, URI relationUri, boolean inverse,
+                                                     Class<E> clazz) {
+      try {
+         final RepositoryResult<Statement> si;
+         if (inverse) {
+            si = rep().getStatements(null, relationUri, subj, inference, graphs);
+         } else if (subj instanceof Resource) {
+            si = rep().getStatements((Resource) subj, relationUri, null, inference, graphs);
+         } else {
+            return new MappingIterator<E>(clazz);
+         }
+         if (enableDuplicateFilter) si.enableDuplicateFilter();
+         final boolean inv = inverse;
+         //it would be better if the database returned this in its answer set
+         final boolean sameAs = relationUri.toString().equals(rdf.sameAs);
+         return new MappingIterator<E>(clazz) {
+            boolean self = sameAs;
+
+            Value nextValue() throws OpenRDFException {
+               if (si.hasNext()) {
+                  Statement s = si.next();
+                  return (inv) ? s.getSubject() : s.getObject();
+               }
+               if (self) {
+                  self = false;
+                  return subj;
+               }
+               return null;
+            }
+
+            void closeResult() throws OpenRDFException {
+               si.close();
+            }
+         };
+      } catch (RepositoryException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      }
+      return new MappingIterator<E>(clazz);
+   }
+
+   public <T> CloseableIterator<T> iterateByExample(Object eg, Class<T> clazz) {
+      if (!(eg instanceof RdfSerialisable)) {
+         return new MappingIterator<T>(clazz);
+      }
+      QueryByExampleSerialiser query = new QueryByExampleSerialiser();
+      ((RdfSerialisable) eg).rdfSerialise(query);
+      String sparql = query.toString();
+      log.fine("query=" + sparql);
+      try {
+         if (!graphsNameable()) {
+            final Iterator<Value> matches = query.match().iterator();
+            return new MappingIterator<T>(clazz) {
+
+               Value nextValue() {
+                  return (matches.hasNext()) ? matches.next() : null;
+               }
+            };
+         }
+         //the result is read lazily, so it needs a query of its own rather than a shared prepared one
+         TupleQuery tq = rep().prepareTupleQuery(QueryLanguage.SPARQL, sparql);
+         query.bindTo(tq);
+         tq.setIncludeInferred(inference);
+         final TupleQueryResult values = tq.evaluate();
+         return new MappingIterator<T>(clazz) {
+
+            Value nextValue() throws OpenRDFException {
+               while (values.hasNext()) {
+                  Value v = values.next().getValue("Obj0");
+                  if (v != null) {
+                     return v;
+                  }
+               }
+               return null;
+            }
+
+            void closeResult() throws OpenRDFException {
+               values.close();
+            }
+         };
+      } catch (MalformedQueryException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      } catch (RepositoryException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      } catch (QueryEvaluationException e) {
+         e.printStackTrace(); //todo: decide what exception to throw
+      }
+      return new MappingIterator<T>(clazz);
+   }
+
+   /**
+    * Read the results open on the connection to the end and close them, so that the store can be
+    * written to. Mappers may share a connection, so these include the results opened through the others.
+    * Their iterators go on with the values read.
+    */
+   private void detachOpenResults() {
+      Map<MappingIterator, Boolean> openResults = shared.openResults;
+      ArrayList<MappingIterator> open;
+      synchronized (openResults) {
+         if (openResults.isEmpty()) {
+            return;
+         }
+         open = new ArrayList<MappingIterator>(openResults.keySet());
+      }
+      for (MappingIterator it : open) {
+         it.detach();
+      }
+   }
+
+   /**
+    * Maps the values of a store result to java objects as they are asked for.
+    * Values are read ahead in a small window. As soon as the result is exhausted it is closed,
+    * otherwise it is closed by close(), or at worst when the iterator is garbage collected.
+    * If the store is written to while the result is open, the rest of its values are read first
+    * (see detach()).
+    * Values that don't map to an object of the class are skipped.
+    * This class itself iterates over nothing: subclasses give it the result to read.
+    */
+   class MappingIterator<T> implements CloseableIterator<T> {
+
+      static final int WINDOW = 64;
+      final Class<T> clazz;
+      final LinkedList<Value> window = new LinkedList<Value>();
+      /** the values read when the result was detached, or null */
+      LinkedList<Value> rest = null;
+      Map<Resource, List<String>> types = null;
+      boolean closed = false;
+      T next = null;
+      /** the open results of the connection this iterator reads from */
+      final Map<MappingIterator, Boolean> openResults = shared.openResults;
+
+      MappingIterator(Class<T> clazz) {
+         this.clazz = clazz;
+         synchronized (openResults) {
+            openResults.put(this, Boolean.TRUE);
+         }
+      }
+
+      /**
+       * @return the next value of the result, or null at its end
+       */
+      Value nextValue() throws OpenRDFException {
+         return null;
+      }
+
+      void closeResult() throws OpenRDFException {
+      }
+
+      private void fill() {
+         synchronized (this) {
+            try {
+               while (window.size() < WINDOW) {
+                  Value v = (rest != null) ? rest.poll() : (closed) ? null : nextValue();
+                  if (v == null) {
+                     close();
+                     break;
+                  }
+                  window.add(v);
+               }
+            } catch (OpenRDFException e) {
+               log.log(Level.SEVERE, "could not read results", e); //todo: decide what exception to throw
+               close();
+            }
+         }
+         //outside the lock, as reading the types may write a batch, which detaches the open results
+         types = prefetchTypes(window, clazz);
+      }
+
+      /**
+       * Read the rest of the result and close it. Only the values are kept, they are still mapped
+       * to objects as they are reached.
+       */
+      synchronized void detach() {
+         if (closed) {
+            return;
+         }
+         LinkedList<Value> values = new LinkedList<Value>();
+         try {
+            for (Value v = nextValue(); v != null; v = nextValue()) {
+               values.add(v);
+            }
+         } catch (OpenRDFException e) {
+            log.log(Level.SEVERE, "could not read results", e); //todo: decide what exception to throw
+         }
+         close();
+         rest = values;
+      }
+
+      public boolean hasNext() {
+         while (next == null) {
+            if (window.isEmpty()) {
+               fill();
+               if (window.isEmpty()) {
+                  return false;
+               }
+            }
+            next = map(window.removeFirst(), clazz, types);
+         }
+         return true;
+      }
+
+      public T next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         T result = next;
+         next = null;
+         return result;
+      }
+
+      public void remove() {
+         throw new UnsupportedOperationException("remove the object from the mapper instead");
+      }
+
+      public synchronized void close() {
+         rest = null;
+         if (closed) {
+            return;
+         }
+         closed = true;
+         synchronized (openResults) {
+            openResults.remove(this);
+         }
+         try {
+            closeResult();
+         } catch (OpenRDFException e) {
+            log.log(Level.WARNING, "could not close results", e);
+         }
+      }
+
+      @Override
+      protected void finalize() throws Throwable {
+         close();
+         super.finalize();
+      }
+   }
+
    public Object createLiteral(String s) {
       return vf.createLiteral(s);
    }
@@ -1923,7 +3724,7 @@ public class SesameMapper extends Mapping {
    }
 
    public Object createLiteralType(String s, String uriType) {
-      return vf.createLiteral(s, vf.createURI(uriType));
+      return vf.createLiteral(s, vocabularyURI(uriType));
    }
 
    public Object createResource(String uri) {
@@ -1940,7 +3741,7 @@ public class SesameMapper extends Mapping {
    }
 
    public List<Class> getClassesOf(String uri) {
-      List<Class> result = new ArrayList<Class>();
+      ArrayList<String> types = new ArrayList<String>();
       RepositoryResult<Statement> typeStmts = null;
       try {
          URI ssmeuri = vf.createURI(uri);
@@ -1950,10 +3751,7 @@ public class SesameMapper extends Mapping {
             Statement stm = typeStmts.next();
             Value type = stm.getObject();
             if (type instanceof URI) {
-               List<Class> clazzes = classmap.get(type.stringValue());
-               if (clazzes != null) {
-                  result.addAll(clazzes);
-               }
+               types.add(type.stringValue());
             }
          }
          typeStmts.close();
@@ -1968,45 +3766,8 @@ public class SesameMapper extends Mapping {
             }
          }
       }
-
-      //filter out all the superclasses
-      //this is a square type of calculation, but since the number of classes an object belongs to should
-      //be relatively small, this should not be too bad. But watch out.
-      int nulls = 0;
-      outerloop:
-      for (int i = 0; i < result.size(); i++) {
-         Class outer = result.get(i);
-         if (outer == null) {
-            continue;
-         }
-         for (int ii = i + 1; ii < result.size(); ii++) {
-            Class inner = result.get(ii);
-            if (inner == null) {
-               continue;
-            }
-            if (inner.isAssignableFrom(outer)) {
-               result.set(ii, null);
-               nulls++;
-               continue;
-            }
-            if (outer.isAssignableFrom(inner)) {
-               result.set(i, null);
-               nulls++;
-               continue outerloop;
-            }
-         }
-      }
-      if (nulls == 0) {
-         return result;
-      }
-      ArrayList filteredres = new ArrayList<Class>(result.size() - nulls);
-      for (Class c : result) {
-         if (c != null) {
-            filteredres.add(c);
-         }
-      }
-
-      return filteredres;
+      //the superclasses of other classes are filtered out by the index
+      return new ArrayList<Class>(classes.index().mostSpecificClasses(types));
    }
 
    public void enableInferencing(boolean on) {
@@ -2024,7 +3785,7 @@ public class SesameMapper extends Mapping {
 
    public <T> ArrayList<T> getRelatedObject(Object subject, String relationURI, boolean inverse, Class<T> clazz) {
       Value res = findKnownMappedValueFor(subject);
-      return getCollection(res, vf.createURI(relationURI), inverse, clazz);
+      return getCollection(res, vocabularyURI(relationURI), inverse, clazz);
    }
 
    /** make the field f accessible to do setting and getting operations on */
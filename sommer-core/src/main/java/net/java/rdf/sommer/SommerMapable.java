@@ -34,8 +34,8 @@ package net.java.rdf.sommer;
  * Objects that can be mapped, will implement this interface
  * This interface will normally be added using byte code rewriting.
  *
- * Note: other ideas of things one could place in the object:
- *  - its Resource identity: this would avoid a hash table lookup for each object
+ * The object also keeps its Resource identity for the mapper that set itself on it,
+ * which avoids a hash table lookup each time the mapper needs the name of the object.
  *
  * TODO: This should be an interface with no methods. The mothods should be on the 
  * sommer interfaces and accept only objects that have this interface implemented.
@@ -52,5 +52,17 @@ public interface SommerMapable {
    //this method should be moved to the RewriteMapper interface and it should deal with this using introspection on the object
    /** set the rewrite mapper */
    void setSommerRewriteMapper(RewriteMapper map);
-     
+
+   /** @return the rewrite mapper, or null if the object is not mapped */
+   RewriteMapper getSommerRewriteMapper();
+
+   /**
+    * @return the identity given to this object by its rewrite mapper, or null.
+    * Changing the rewrite mapper forgets the identity.
+    */
+   Object getSommerResource();
+
+   /** set the identity of this object, for use by its rewrite mapper only */
+   void setSommerResource(Object resource);
+
 }
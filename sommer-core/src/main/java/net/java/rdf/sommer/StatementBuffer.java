@@ -0,0 +1,185 @@
+/*
+ New BSD license: http://opensource.org/licenses/bsd-license.php
+
+ Copyright (c) 2003, 2004, 2005 Sun Microsystems, Inc.
+ 901 San Antonio Road, Palo Alto, CA 94303 USA. 
+ All rights reserved.
+
+
+ Redistribution and use in source and binary forms, with or without 
+ modification, are permitted provided that the following conditions are met:
+
+ - Redistributions of source code must retain the above copyright notice, 
+  this list of conditions and the following disclaimer.
+ - Redistributions in binary form must reproduce the above copyright notice, 
+  this list of conditions and the following disclaimer in the documentation 
+  and/or other materials provided with the distribution.
+ - Neither the name of Sun Microsystems, Inc. nor the names of its contributors
+  may be used to endorse or promote products derived from this software 
+  without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ POSSIBILITY OF SUCH DAMAGE.
+*/
+package net.java.rdf.sommer;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The statements added and removed during a batch, waiting to be written to the repository.
+ * Redundant changes are coalesced: adding a statement cancels a pending removal of it, and removing
+ * statements cancels the pending additions they match. As a result all removals can be written
+ * before all additions, with the same outcome as writing the changes in the order they were made.
+ *
+ * Not thread safe: SesameMapper guards it.
+ *
+ * @author Henry Story
+ */
+class StatementBuffer {
+
+   /** a removal of all statements matching subject, predicate and object, where null matches anything */
+   static class Pattern {
+      final Resource subj;
+      final URI pred;
+      final Value obj;
+
+      Pattern(Resource subj, URI pred, Value obj) {
+         this.subj = subj;
+         this.pred = pred;
+         this.obj = obj;
+      }
+
+      boolean matches(Statement st) {
+         return (subj == null || subj.equals(st.getSubject())) &&
+                 (pred == null || pred.equals(st.getPredicate())) &&
+                 (obj == null || obj.equals(st.getObject()));
+      }
+   }
+
+   private final LinkedHashSet<Statement> adds = new LinkedHashSet<Statement>();
+   //the pending additions indexed by subject and object, as removal patterns nearly always fix one of them
+   private final HashMap<Value, ArrayList<Statement>> addsBySubject = new HashMap<Value, ArrayList<Statement>>();
+   private final HashMap<Value, ArrayList<Statement>> addsByObject = new HashMap<Value, ArrayList<Statement>>();
+   private final LinkedHashSet<Statement> removes = new LinkedHashSet<Statement>();
+   private final ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+
+   boolean isEmpty() {
+      return adds.isEmpty() && removes.isEmpty() && patterns.isEmpty();
+   }
+
+   void add(Statement st) {
+      removes.remove(st);
+      if (adds.add(st)) {
+         index(addsBySubject, st.getSubject(), st);
+         index(addsByObject, st.getObject(), st);
+      }
+   }
+
+   /** remove exactly the statement st */
+   void remove(Statement st) {
+      unadd(st);
+      removes.add(st);
+   }
+
+   /** remove all statements matching the pattern, where null matches anything */
+   void remove(Resource subj, URI pred, Value obj) {
+      Pattern p = new Pattern(subj, pred, obj);
+      ArrayList<Statement> candidates;
+      if (subj != null) {
+         candidates = addsBySubject.get(subj);
+      } else if (obj != null) {
+         candidates = addsByObject.get(obj);
+      } else {
+         candidates = new ArrayList<Statement>(adds);
+      }
+      if (candidates != null) {
+         for (Statement st : new ArrayList<Statement>(candidates)) {
+            if (p.matches(st)) {
+               unadd(st);
+            }
+         }
+      }
+      for (Iterator<Statement> it = removes.iterator(); it.hasNext();) {
+         if (p.matches(it.next())) {
+            it.remove(); //the pattern removes it anyway
+         }
+      }
+      patterns.add(p);
+   }
+
+   /**
+    * Write the changes to the connection and forget them.
+    *
+    * @param con        the connection to write to
+    * @param writeGraph the graph statements are added to
+    * @param graphs     the graphs statements are removed from
+    */
+   void flush(RepositoryConnection con, Resource writeGraph, Resource[] graphs) throws RepositoryException {
+      try {
+         for (Pattern p : patterns) {
+            con.remove(p.subj, p.pred, p.obj, graphs);
+         }
+         if (!removes.isEmpty()) {
+            con.remove(removes, graphs);
+         }
+         if (!adds.isEmpty()) {
+            con.add(adds, writeGraph);
+         }
+      } finally {
+         clear();
+      }
+   }
+
+   void clear() {
+      adds.clear();
+      addsBySubject.clear();
+      addsByObject.clear();
+      removes.clear();
+      patterns.clear();
+   }
+
+   private void unadd(Statement st) {
+      if (adds.remove(st)) {
+         unindex(addsBySubject, st.getSubject(), st);
+         unindex(addsByObject, st.getObject(), st);
+      }
+   }
+
+   private static void index(HashMap<Value, ArrayList<Statement>> index, Value key, Statement st) {
+      ArrayList<Statement> list = index.get(key);
+      if (list == null) {
+         list = new ArrayList<Statement>(2);
+         index.put(key, list);
+      }
+      list.add(st);
+   }
+
+   private static void unindex(HashMap<Value, ArrayList<Statement>> index, Value key, Statement st) {
+      ArrayList<Statement> list = index.get(key);
+      if (list != null) {
+         list.remove(st);
+         if (list.isEmpty()) {
+            index.remove(key);
+         }
+      }
+   }
+}
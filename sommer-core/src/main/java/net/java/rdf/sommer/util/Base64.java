@@ -0,0 +1,120 @@
+/*
+ New BSD license: http://opensource.org/licenses/bsd-license.php
+
+ Copyright (c) 2003, 2004, 2005 Sun Microsystems, Inc.
+ 901 San Antonio Road, Palo Alto, CA 94303 USA. 
+ All rights reserved.
+
+
+ Redistribution and use in source and binary forms, with or without 
+ modification, are permitted provided that the following conditions are met:
+
+ - Redistributions of source code must retain the above copyright notice, 
+  this list of conditions and the following disclaimer.
+ - Redistributions in binary form must reproduce the above copyright notice, 
+  this list of conditions and the following disclaimer in the documentation 
+  and/or other materials provided with the distribution.
+ - Neither the name of Sun Microsystems, Inc. nor the names of its contributors
+  may be used to endorse or promote products derived from this software 
+  without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ POSSIBILITY OF SUCH DAMAGE.
+*/
+package net.java.rdf.sommer.util;
+
+/**
+ * Base 64 encoding, as used by xsd:base64Binary literals.
+ *
+ * @author Henry Story
+ */
+public class Base64 {
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    /** the value of each character, -1 for characters that are not in the alphabet */
+    private static final int[] VALUES = new int[128];
+
+    static {
+        java.util.Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64() {
+    }
+
+    /**
+     * @return the bytes in base 64, padded with '='
+     */
+    public static String encode(byte[] bytes) {
+        StringBuilder result = new StringBuilder(((bytes.length + 2) / 3) * 4);
+        int i = 0;
+        for (; i + 2 < bytes.length; i += 3) {
+            int n = ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8) | (bytes[i + 2] & 0xff);
+            result.append(ALPHABET[n >>> 18]).append(ALPHABET[(n >>> 12) & 0x3f])
+                    .append(ALPHABET[(n >>> 6) & 0x3f]).append(ALPHABET[n & 0x3f]);
+        }
+        int left = bytes.length - i;
+        if (left > 0) {
+            int n = (bytes[i] & 0xff) << 16;
+            if (left == 2) {
+                n |= (bytes[i + 1] & 0xff) << 8;
+            }
+            result.append(ALPHABET[n >>> 18]).append(ALPHABET[(n >>> 12) & 0x3f]);
+            result.append((left == 2) ? ALPHABET[(n >>> 6) & 0x3f] : '=').append('=');
+        }
+        return result.toString();
+    }
+
+    /**
+     * @param text base 64 text. White space is ignored.
+     * @return the bytes encoded in the text
+     * @throws IllegalArgumentException if the text is not base 64
+     */
+    public static byte[] decode(String text) {
+        byte[] buffer = new byte[(text.length() / 4) * 3 + 3];
+        int length = 0;
+        int n = 0;
+        int chars = 0;
+        int padding = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            int v;
+            if (c == '=') {
+                padding++;
+                v = 0;
+            } else if (padding > 0 || c >= 128 || (v = VALUES[c]) < 0) {
+                throw new IllegalArgumentException("not base 64: " + text);
+            }
+            n = (n << 6) | v;
+            if (++chars == 4) {
+                buffer[length++] = (byte) (n >>> 16);
+                buffer[length++] = (byte) (n >>> 8);
+                buffer[length++] = (byte) n;
+                n = 0;
+                chars = 0;
+            }
+        }
+        if (chars != 0 || padding > 2) {
+            throw new IllegalArgumentException("not base 64: " + text);
+        }
+        length -= padding;
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+}
@@ -36,28 +36,42 @@ import java.util.ArrayList;
 import net.java.rdf.sommer.SesameMapper;
 import org.openrdf.model.Resource;
 import org.openrdf.model.URI;
+import org.openrdf.model.Value;
 import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.model.vocabulary.RDFS;
 
 import java.util.Collection;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * An  unbuffered collection. Once the elements are added to the collection, all calls go straight to the rdf
  * database.
  * (easier to debug)
  * class should probably called SesameRDFCollection as it does depend on Sesame Resource...
+ * The members read from the database are kept, and changes made through the collection are applied to them,
+ * so they are only read again when the relation is changed in some other way.
+ * Like the java collections it is not thread safe.
  *
  * @author Henry Story
  */
 public class RDFCollection<E> implements Collection<E> {
+    /** collections with more members than this are read as they are iterated over, rather than all at once */
+    static final int STREAM_THRESHOLD = 1000;
     Resource source;
     URI relation;
     boolean inverse = false;
     Class superType;
     SesameMapper map;
-    ArrayList cache = null;
+    /** the members of the collection by their rdf values, in the order they were read or added in */
+    LinkedHashMap<Value, E> cache = null;
+    /** the values of the relation that could not be mapped to members when the cache was read */
+    HashSet<Value> unmapped = new HashSet<Value>();
 
     /**
      * Map all of its elements into a Semantic web collection taking this as subject
@@ -112,43 +126,174 @@ public class RDFCollection<E> implements Collection<E> {
         }
     }
     
-    Date updatedAt;
-    private Collection<E> getCurrentCollection() {
-        if (cache == null || map.isDirty(updatedAt)) {  
+    /** the version of the relation when the cache was read */
+    long version;
+
+    /**
+     * @return the members by their values, read again if the relation changed
+     */
+    private Map<Value, E> currentMembers() {
+        long current = map.version(source, relation, inverse);
+        if (cache == null || current != version) {
             //XXX This seems to get called very very frequently.
             //Removed logging since it was logged so much it was
             //making any other logging unusable. - Tim
-            cache = map.getCollection(source, relation, inverse, superType);
-            //clearly the wrong way to do it, but good enough for a test
-            updatedAt = new Date();
+            unmapped = new HashSet<Value>();
+            cache = map.getMembers(source, relation, inverse, superType, unmapped);
+            version = current;
         }
         return cache;
     }
 
+    private Collection<E> getCurrentCollection() {
+        return currentMembers().values();
+    }
+
     /**
-     * replace all the members of this collection with those of the new collection
-     * 
-     * the algorithm could perhaps be improoved to work out if relations already exist before removing them...
+     * @return the members read from the database if they are still up to date, or null.
+     *         Unlike currentMembers this never reads them.
+     */
+    private Map<Value, E> currentCache() {
+        if (cache != null && version == map.version(source, relation, inverse)) {
+            return cache;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the cache is up to date with the version of the relation read before a write,
+     *         in which case the write can be applied to the cache. Otherwise the cache will be read again.
+     */
+    private boolean cacheCurrentAt(long before) {
+        return cache != null && before == version;
+    }
+
+    /**
+     * the cache has had the changes of this collection applied to it: it is up to date
+     */
+    private void cacheUpdated() {
+        version = map.version(source, relation, inverse);
+    }
+
+    /**
+     * @return the values of the relation, those of the members and those that could not be mapped to members,
+     *         taken from the cache if it is up to date. The set must not be changed.
+     */
+    private Set<Value> currentValues() {
+        if (currentCache() == null) {
+            return map.relatedValues(source, relation, inverse);
+        }
+        if (unmapped.isEmpty()) {
+            return cache.keySet();
+        }
+        HashSet<Value> values = new HashSet<Value>(cache.keySet());
+        values.addAll(unmapped);
+        return values;
+    }
+
+    /**
+     * replace all the members of this collection with those of the new collection.
+     * Only the relations to the members that are not in both are written, together.
+     * Members are compared by their rdf values, and values in the database that are not members because
+     * they could not be mapped to objects of the collection's type are removed too.
      */ 
     public void replaceWith(Collection newColl) {
-       clear();
-       addAll(newColl);
+        Set<Value> current = currentValues();
+        HashSet<Value> wanted = new HashSet<Value>();
+        ArrayList<E> added = new ArrayList<E>();
+        for (Object o : (Collection<?>) newColl) {
+            Value v = map.findKnownMappedValueFor(o);
+            if (v == null || (wanted.add(v) && !current.contains(v))) {
+                added.add((E) o);
+            }
+        }
+        ArrayList<Value> removed = new ArrayList<Value>();
+        for (Value v : current) {
+            if (!wanted.contains(v)) {
+                removed.add(v);
+            }
+        }
+        change(removed, added);
     }
-    
+
+    /**
+     * write the changes to the relation in one batch, and apply them to the cache
+     *
+     * @param removed the values of the members removed
+     * @param added   the objects added, which are not members yet
+     * @return true if there were changes and they were all written
+     */
+    private boolean change(Collection<Value> removed, Collection<? extends E> added) {
+        if (removed.isEmpty() && added.isEmpty()) {
+            return false;
+        }
+        long before = map.version(source, relation, inverse);
+        boolean result = map.changeRelations(source, relation, inverse, removed, added);
+        if (cacheCurrentAt(before)) {
+            if (result) {
+                for (Value v : removed) {
+                    cache.remove(v);
+                    unmapped.remove(v);
+                }
+                for (E o : added) {
+                    cache.put(map.findKnownMappedValueFor(o), o); //written objects have a name
+                }
+                cacheUpdated();
+            } else {
+                cache = null; //we don't know what was written
+            }
+        }
+        return result;
+    }
+
+    //members are compared by their rdf values, so that objects with the same name are the same member.
+    //size, isEmpty and contains ask the database directly when the members have not been read,
+    //rather than creating an object for each of them. Like the iterator they leave out the values that
+    //can't be mapped to the member type
+
     public int size() {
-        return getCurrentCollection().size();
+        Map<Value, E> current = currentCache();
+        if (current != null) {
+            return current.size();
+        }
+        return map.countMembers(source, relation, inverse, superType, Integer.MAX_VALUE);
     }
 
     public boolean isEmpty() {
-        return getCurrentCollection().isEmpty();
+        Map<Value, E> current = currentCache();
+        if (current != null) {
+            return current.isEmpty();
+        }
+        return !map.hasRelated(source, relation, inverse, null)
+                || map.countMembers(source, relation, inverse, superType, 1) == 0;
     }
 
     public boolean contains(Object o) {
-        return getCurrentCollection().contains(o);
+        Value id = map.findKnownMappedValueFor(o);
+        if (id == null) {
+            return false; //an object without a name is related to nothing
+        }
+        Map<Value, E> current = currentCache();
+        if (current != null) {
+            return current.containsKey(id);
+        }
+        //a related value is a member if its object is of the member type
+        return (superType == null || superType.isInstance(o)) && map.hasRelated(source, relation, inverse, id);
     }
 
+    /**
+     * If the members have not been read and there are more than STREAM_THRESHOLD of them, they are read
+     * from the database as the iteration proceeds, only a few at a time, otherwise they are all read first.
+     * The iterator is a CloseableIterator: one that is abandoned before the end should be closed.
+     * The members removed through an iterator that reads from the database are removed together
+     * when it reaches the end or is closed.
+     */
     public Iterator<E> iterator() {
-        return new MRIterator();
+        if (currentCache() == null
+                && map.relatedValues(source, relation, inverse, STREAM_THRESHOLD + 1).size() > STREAM_THRESHOLD) {
+            return new MRIterator(map.iterateCollection(source, relation, inverse, superType), false);
+        }
+        return new MRIterator(getCurrentCollection().iterator(), true);
     }
 
     public Object[] toArray() {
@@ -160,96 +305,145 @@ public class RDFCollection<E> implements Collection<E> {
     }
 
     public boolean add(E o) {
-        //todo: check: not sure if this fullfills the add contract concerning the return value
-        if (map.addRelation(source, relation, inverse, o))  {
-             ArrayList cacheofcache = cache;
-            if (getCurrentCollection() == cacheofcache) {
-                if (!cache.contains(o)) {
-                    //we have to do this because we are dealing with a Collection and not a list.
-                    //It may be better to use a HashSet for the cache
-                    cache.add(o);
-                }
-            } // else the current collection is now up to date
-            return true;
+        if (contains(o)) {
+            return false;
         }
-        return false;
+        return change(Collections.<Value>emptyList(), Collections.singletonList(o));
     }
 
     public boolean remove(Object o) {
-       
-        return map.removeRelation(source, relation, inverse, o);
+        if (!contains(o)) {
+            return false;
+        }
+        return change(Collections.singletonList(map.findKnownMappedValueFor(o)), Collections.<E>emptyList());
     }
 
     public boolean containsAll(Collection<?> c) {
-        return getCurrentCollection().containsAll(c);
+        Map<Value, E> current = currentMembers();
+        for (Object o : c) {
+            Value v = map.findKnownMappedValueFor(o);
+            if (v == null || !current.containsKey(v)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public boolean addAll(Collection<? extends E> c) {
-        boolean result = true;
+        Set<Value> current = currentValues();
+        HashSet<Value> seen = new HashSet<Value>();
+        ArrayList<E> added = new ArrayList<E>();
         for (E o : c) {
-            //todo: could work on faster implementation!
-            //todo: also this should be done in a transactional way
-            if (!map.addRelation(source, relation, inverse, o))
-                result = false;
-        }
-        ArrayList cacheofcache = cache;
-         if (getCurrentCollection() == cacheofcache) {
-             for (E o: c) {
-              if (!cache.contains(o)) {
-                 //we have to do this because we are dealing with a Collection and not a list.
-                 //It may be better to use a HashSet for the cache
-                 cache.add(o);
-              }
-             }
-         }
-        return result;
+            Value v = map.findKnownMappedValueFor(o);
+            if (v == null || (!current.contains(v) && seen.add(v))) {
+                added.add(o);
+            }
+        }
+        return change(Collections.<Value>emptyList(), added);
     }
 
-    //todo check if the return value really respects the contract
     public boolean removeAll(Collection<?> c) {
-        boolean success = true;
-        for (Object o : c) {//could work on faster implementation!
-            if (!map.removeRelation(source, relation, inverse, o))
-                success = false;
+        Set<Value> current = currentValues();
+        LinkedHashSet<Value> removed = new LinkedHashSet<Value>();
+        for (Object o : c) {
+            Value v = map.findKnownMappedValueFor(o);
+            if (v != null && current.contains(v)) {
+                removed.add(v);
+            }
         }
-        return success;
+        return change(removed, Collections.<E>emptyList());
     }
 
     public boolean retainAll(Collection<?> c) {
-        boolean changed = false;
-        for (Object o : getCurrentCollection()) {
-            if (!c.contains(o)) {
-                remove(o);
-                changed = true;
+        HashSet<Value> kept = new HashSet<Value>();
+        for (Object o : c) {
+            Value v = map.findKnownMappedValueFor(o);
+            if (v != null) {
+                kept.add(v);
             }
         }
-        return changed;
+        ArrayList<Value> removed = new ArrayList<Value>();
+        for (Value v : currentValues()) {
+            if (!kept.contains(v)) {
+                removed.add(v);
+            }
+        }
+        return change(removed, Collections.<E>emptyList());
     }
 
     public void clear() {
+        long before = map.version(source, relation, inverse);
         map.removeAll(source, relation, inverse);
+        if (cacheCurrentAt(before)) {
+            cache.clear();
+            unmapped.clear();
+            cacheUpdated();
+        }
     }
 
-    class MRIterator implements Iterator {
+    class MRIterator implements CloseableIterator<E> {
         Iterator<E> wit;
+        /** is wit an iterator over the cache? */
+        boolean cached;
         E current;
-
-        MRIterator() {
-            wit = getCurrentCollection().iterator();
+        boolean removable = false;
+        /**
+         * the values of the members removed while reading from the database. Writing would make the store
+         * read the rest of the relation first, so they are only removed at the end.
+         */
+        ArrayList<Value> removals = new ArrayList<Value>();
+
+        MRIterator(Iterator<E> wit, boolean cached) {
+            this.wit = wit;
+            this.cached = cached;
         }
 
         public boolean hasNext() {
-            return wit.hasNext();
+            if (wit.hasNext()) {
+                return true;
+            }
+            applyRemovals();
+            return false;
         }
 
         public E next() {
             current = wit.next();
+            removable = true;
             return current;
         }
 
         public void remove() {
+            if (!removable) {
+                throw new IllegalStateException("next has not been called, or remove was already called");
+            }
+            removable = false;
+            if (!cached) {
+                removals.add(map.findKnownMappedValueFor(current)); //a member read has a name
+                return;
+            }
+            long before = map.version(source, relation, inverse);
             wit.remove();
             map.removeRelation(source, relation, inverse, current);
+            if (cacheCurrentAt(before)) {
+                cacheUpdated();
+            } else {
+                cached = false; //the cache will be read again: we are just going through the old members
+            }
+        }
+
+        public void close() {
+            if (wit instanceof CloseableIterator) {
+                ((CloseableIterator) wit).close();
+            }
+            applyRemovals();
+        }
+
+        private void applyRemovals() {
+            if (!removals.isEmpty()) {
+                ArrayList<Value> removed = removals;
+                removals = new ArrayList<Value>();
+                change(removed, Collections.<E>emptyList());
+            }
         }
     }
 }
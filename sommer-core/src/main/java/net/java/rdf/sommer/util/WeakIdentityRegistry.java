@@ -0,0 +1,414 @@
+/*
+ New BSD license: http://opensource.org/licenses/bsd-license.php
+
+ Copyright (c) 2003, 2004, 2005 Sun Microsystems, Inc.
+ 901 San Antonio Road, Palo Alto, CA 94303 USA. 
+ All rights reserved.
+
+
+ Redistribution and use in source and binary forms, with or without 
+ modification, are permitted provided that the following conditions are met:
+
+ - Redistributions of source code must retain the above copyright notice, 
+  this list of conditions and the following disclaimer.
+ - Redistributions in binary form must reproduce the above copyright notice, 
+  this list of conditions and the following disclaimer in the documentation 
+  and/or other materials provided with the distribution.
+ - Neither the name of Sun Microsystems, Inc. nor the names of its contributors
+  may be used to endorse or promote products derived from this software 
+  without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ POSSIBILITY OF SUCH DAMAGE.
+*/
+package net.java.rdf.sommer.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A thread safe registry of the names given to objects, and of the objects known under a name.
+ * <p/>
+ * Objects are compared by identity, not by equals(), and they are only weakly referenced: once an
+ * object is no longer used by the application it disappears from the registry, and so does its name
+ * if no other object is known by it. Names are compared with equals().
+ * <p/>
+ * The registry is split into a number of stripes, each with its own lock. An object is kept in the
+ * stripe selected by its identity hash, a name in the stripe selected by its hash code. No operation
+ * ever holds more than one stripe lock at a time, so threads working on different objects rarely
+ * wait on each other.
+ *
+ * @author Henry Story
+ */
+public class WeakIdentityRegistry<N> {
+
+    static final int DEFAULT_CONCURRENCY = 16;
+    static final int INITIAL_TABLE_SIZE = 16;
+
+    private final Stripe<N>[] stripes;
+    private final int stripeShift;
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    public WeakIdentityRegistry() {
+        this(DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * @param concurrencyLevel the estimated number of threads updating the registry at the same time
+     */
+    @SuppressWarnings("unchecked")
+    public WeakIdentityRegistry(int concurrencyLevel) {
+        int bits = 0;
+        while ((1 << bits) < concurrencyLevel && bits < 16) {
+            bits++;
+        }
+        stripes = new Stripe[1 << bits];
+        stripeShift = 32 - bits;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe<N>();
+        }
+    }
+
+    /**
+     * @param obj an object
+     * @return the name given to obj, or null if it has none
+     */
+    public N get(Object obj) {
+        if (obj == null) {
+            return null;
+        }
+        expungeStaleEntries();
+        int h = hash(System.identityHashCode(obj));
+        Stripe<N> s = stripeFor(h);
+        synchronized (s) {
+            Entry<N> e = s.find(obj, h);
+            return (e == null) ? null : e.name;
+        }
+    }
+
+    public boolean containsKey(Object obj) {
+        return get(obj) != null;
+    }
+
+    /**
+     * Give obj a name. An object only ever has one name, so any previous name is forgotten.
+     *
+     * @return the previous name of obj or null
+     */
+    public N put(Object obj, N name) {
+        if (obj == null || name == null) {
+            throw new NullPointerException("neither object nor name can be null");
+        }
+        expungeStaleEntries();
+        int h = hash(System.identityHashCode(obj));
+        Stripe<N> s = stripeFor(h);
+        Entry<N> e;
+        N old;
+        synchronized (s) {
+            e = s.find(obj, h);
+            if (e == null) {
+                e = s.insert(obj, h, queue);
+            }
+            old = e.name;
+            e.name = name;
+        }
+        if (old == null || !old.equals(name)) {
+            if (old != null) {
+                unlist(e, old);
+            }
+            list(e, name);
+        }
+        return old;
+    }
+
+    /**
+     * Forget obj
+     *
+     * @return the name obj had, or null if it was not known
+     */
+    public N remove(Object obj) {
+        if (obj == null) {
+            return null;
+        }
+        expungeStaleEntries();
+        int h = hash(System.identityHashCode(obj));
+        Stripe<N> s = stripeFor(h);
+        N old;
+        Entry<N> e;
+        synchronized (s) {
+            e = s.find(obj, h);
+            if (e == null) {
+                return null;
+            }
+            s.unlink(e);
+            e.removed = true;
+            old = e.name;
+        }
+        if (old != null) {
+            unlist(e, old);
+        }
+        return old;
+    }
+
+    /**
+     * @param name a name
+     * @return a new list of all the objects currently known by that name, in the order they were named
+     */
+    public List<Object> getObjects(N name) {
+        if (name == null) {
+            return new ArrayList<Object>(0);
+        }
+        expungeStaleEntries();
+        Stripe<N> s = stripeFor(hash(name.hashCode()));
+        synchronized (s) {
+            ArrayList<Entry<N>> entries = s.objects.get(name);
+            if (entries == null) {
+                return new ArrayList<Object>(0);
+            }
+            ArrayList<Object> result = new ArrayList<Object>(entries.size());
+            for (Entry<N> e : entries) {
+                Object o = e.get();
+                if (o != null) {
+                    result.add(o);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return a new list of all the objects that currently have a name
+     */
+    public List<Object> getObjects() {
+        expungeStaleEntries();
+        ArrayList<Object> result = new ArrayList<Object>();
+        for (Stripe<N> s : stripes) {
+            synchronized (s) {
+                for (Entry<N> head : s.table) {
+                    for (Entry<N> e = head; e != null; e = e.next) {
+                        Object o = e.get();
+                        if (o != null) {
+                            result.add(o);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * forget all objects and names
+     */
+    public void clear() {
+        for (Stripe<N> s : stripes) {
+            synchronized (s) {
+                s.clear();
+            }
+        }
+        while (queue.poll() != null) {
+            //entries are gone already
+        }
+    }
+
+    /**
+     * @return the number of objects that currently have a name
+     */
+    public int size() {
+        expungeStaleEntries();
+        int size = 0;
+        for (Stripe<N> s : stripes) {
+            synchronized (s) {
+                size += s.count;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Add e to the list of objects of name, unless it was removed or renamed in the mean time.
+     * Because the check and the addition happen under the name's lock, and removals and renamings
+     * always change the entry before unlisting it, a concurrent remove or put cannot leave a stale
+     * entry behind.
+     */
+    private void list(Entry<N> e, N name) {
+        Stripe<N> s = stripeFor(hash(name.hashCode()));
+        synchronized (s) {
+            if (e.removed || !name.equals(e.name)) {
+                return;
+            }
+            ArrayList<Entry<N>> entries = s.objects.get(name);
+            if (entries == null) {
+                entries = new ArrayList<Entry<N>>(2);
+                s.objects.put(name, entries);
+            }
+            if (!entries.contains(e)) {
+                entries.add(e);
+            }
+        }
+    }
+
+    private void unlist(Entry<N> e, N name) {
+        Stripe<N> s = stripeFor(hash(name.hashCode()));
+        synchronized (s) {
+            ArrayList<Entry<N>> entries = s.objects.get(name);
+            if (entries == null) {
+                return;
+            }
+            entries.remove(e);
+            if (entries.isEmpty()) {
+                s.objects.remove(name);
+            }
+        }
+    }
+
+    /**
+     * remove the entries of objects that have been garbage collected
+     */
+    @SuppressWarnings("unchecked")
+    private void expungeStaleEntries() {
+        Object ref;
+        while ((ref = queue.poll()) != null) {
+            Entry<N> e = (Entry<N>) ref;
+            Stripe<N> s = stripeFor(e.hash);
+            N name;
+            synchronized (s) {
+                if (e.removed) {
+                    continue;
+                }
+                s.unlink(e);
+                e.removed = true;
+                name = e.name;
+            }
+            if (name != null) {
+                unlist(e, name);
+            }
+        }
+    }
+
+    private Stripe<N> stripeFor(int hash) {
+        return (stripeShift == 32) ? stripes[0] : stripes[hash >>> stripeShift];
+    }
+
+    /**
+     * spread the bits of identity hashes, as these are often badly distributed in the high bits,
+     * which are the ones used to select a stripe
+     */
+    static int hash(int h) {
+        h += (h << 15) ^ 0xffffcd7d;
+        h ^= (h >>> 10);
+        h += (h << 3);
+        h ^= (h >>> 6);
+        h += (h << 2) + (h << 14);
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A weak reference to a named object.
+     * The name is volatile because it is read under the lock of the name's stripe.
+     */
+    static final class Entry<N> extends WeakReference<Object> {
+        final int hash;
+        Entry<N> next;
+        volatile N name;
+        volatile boolean removed = false;
+
+        Entry(Object obj, int hash, ReferenceQueue<Object> queue) {
+            super(obj, queue);
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A stripe holds an identity hash table of the entries of its objects and the lists of entries for its
+     * names. All access is synchronized on the stripe.
+     */
+    static final class Stripe<N> {
+        Entry<N>[] table = newTable(INITIAL_TABLE_SIZE);
+        int count = 0;
+        final HashMap<N, ArrayList<Entry<N>>> objects = new HashMap<N, ArrayList<Entry<N>>>();
+
+        @SuppressWarnings("unchecked")
+        static <N> Entry<N>[] newTable(int size) {
+            return new Entry[size];
+        }
+
+        Entry<N> find(Object obj, int hash) {
+            Entry<N>[] tab = table;
+            for (Entry<N> e = tab[hash & (tab.length - 1)]; e != null; e = e.next) {
+                if (e.hash == hash && e.get() == obj) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        Entry<N> insert(Object obj, int hash, ReferenceQueue<Object> queue) {
+            if (count >= (table.length >> 1) + (table.length >> 2)) {
+                resize();
+            }
+            Entry<N> e = new Entry<N>(obj, hash, queue);
+            int i = hash & (table.length - 1);
+            e.next = table[i];
+            table[i] = e;
+            count++;
+            return e;
+        }
+
+        void unlink(Entry<N> e) {
+            int i = e.hash & (table.length - 1);
+            Entry<N> prev = null;
+            for (Entry<N> p = table[i]; p != null; prev = p, p = p.next) {
+                if (p == e) {
+                    if (prev == null) {
+                        table[i] = p.next;
+                    } else {
+                        prev.next = p.next;
+                    }
+                    e.next = null;
+                    count--;
+                    return;
+                }
+            }
+        }
+
+        void resize() {
+            Entry<N>[] old = table;
+            Entry<N>[] tab = newTable(old.length << 1);
+            for (int i = 0; i < old.length; i++) {
+                Entry<N> e = old[i];
+                while (e != null) {
+                    Entry<N> next = e.next;
+                    int j = e.hash & (tab.length - 1);
+                    e.next = tab[j];
+                    tab[j] = e;
+                    e = next;
+                }
+            }
+            table = tab;
+        }
+
+        void clear() {
+            for (Entry<N> head : table) {
+                for (Entry<N> e = head; e != null; e = e.next) {
+                    e.removed = true;
+                }
+            }
+            table = newTable(INITIAL_TABLE_SIZE);
+            count = 0;
+            objects.clear();
+        }
+    }
+}
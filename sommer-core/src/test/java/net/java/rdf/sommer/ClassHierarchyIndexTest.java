@@ -0,0 +1,56 @@
+package net.java.rdf.sommer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ClassHierarchyIndexTest {
+
+	static final String VEHICLE = Vehicle.v + "Vehicle";
+	static final String CAR = Vehicle.v + "Car";
+	static final String PLANE = Vehicle.v + "Plane";
+
+	private ClassHierarchyIndex index() {
+		HashMap<String, List<Class>> classmap = new HashMap<String, List<Class>>();
+		classmap.put(VEHICLE, new ArrayList<Class>(Arrays.asList(new Class[] { Vehicle.class, Vehicle.class })));
+		classmap.put(CAR, new ArrayList<Class>(Arrays.asList(new Class[] { Car.class })));
+		classmap.put(PLANE, new ArrayList<Class>(Arrays.asList(new Class[] { Plane.class })));
+		return new ClassHierarchyIndex(classmap);
+	}
+
+	@Test
+	public void testMostSpecificSubClass() {
+		ClassHierarchyIndex index = index();
+		assertSame(Car.class, index.mostSpecificSubClass(Vehicle.class, Arrays.asList(VEHICLE, CAR)));
+		assertSame("the order of the types does not matter",
+				Car.class, index.mostSpecificSubClass(Vehicle.class, Arrays.asList(CAR, VEHICLE)));
+		assertSame(Vehicle.class, index.mostSpecificSubClass(Vehicle.class, Arrays.asList(VEHICLE)));
+		assertNull("a plane is not a car", index.mostSpecificSubClass(Car.class, Arrays.asList(PLANE)));
+		assertNull(index.mostSpecificSubClass(Vehicle.class, new ArrayList<String>()));
+		assertNull("unknown answers are remembered too",
+				index.mostSpecificSubClass(Car.class, Arrays.asList(PLANE)));
+	}
+
+	@Test
+	public void testUnrelatedSubClassesFollowTypeOrder() {
+		ClassHierarchyIndex index = index();
+		for (int i = 0; i < 2; i++) { //the second time the answers are remembered ones
+			assertSame(Car.class, index.mostSpecificSubClass(Vehicle.class, Arrays.asList(CAR, PLANE)));
+			assertSame(Plane.class, index.mostSpecificSubClass(Vehicle.class, Arrays.asList(PLANE, CAR)));
+		}
+	}
+
+	@Test
+	public void testMostSpecificClasses() {
+		ClassHierarchyIndex index = index();
+		assertEquals(Arrays.asList(Car.class), index.mostSpecificClasses(Arrays.asList(VEHICLE, CAR)));
+		assertEquals(Arrays.asList(Vehicle.class), index.mostSpecificClasses(Arrays.asList(VEHICLE)));
+		List<Class> both = index.mostSpecificClasses(Arrays.asList(VEHICLE, CAR, PLANE));
+		assertEquals(2, both.size());
+		assertTrue(both.contains(Car.class) && both.contains(Plane.class));
+	}
+}
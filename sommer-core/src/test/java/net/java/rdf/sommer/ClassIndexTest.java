@@ -0,0 +1,31 @@
+package net.java.rdf.sommer;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import net.java.rdf.annotations.rdf;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ClassIndexTest {
+
+	@Test
+	public void testFieldRelations() throws Exception {
+		ClassIndex index = new ClassIndex();
+		index.addClass(Vehicle.class.getName(), Vehicle.v + "Vehicle");
+		index.addField(Vehicle.class.getName(), new ClassIndex.FieldEntry("owner", Vehicle.v + "owner",
+				"java.net.URI", "", false, false));
+		StringWriter out = new StringWriter();
+		index.write(out);
+		ClassIndex read = new ClassIndex();
+		read.read(new StringReader(out.toString()));
+
+		assertEquals(Vehicle.v + "Vehicle", read.types().get(Vehicle.class.getName()));
+		rdf indexed = read.fieldsOf(Vehicle.class.getName()).get(0).relation();
+		rdf declared = Vehicle.class.getDeclaredField("owner").getAnnotation(rdf.class);
+		assertEquals("the indexed relation is equal to the annotation", declared, indexed);
+		assertEquals(indexed, declared);
+		assertEquals(declared.hashCode(), indexed.hashCode());
+	}
+}
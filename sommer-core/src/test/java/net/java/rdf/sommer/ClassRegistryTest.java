@@ -0,0 +1,52 @@
+package net.java.rdf.sommer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ClassRegistryTest {
+
+	static final String VEHICLE = Vehicle.v + "Vehicle";
+	static final String CAR = Vehicle.v + "Car";
+
+	@Test
+	public void testDuplicatesSkipped() {
+		ClassRegistry reg = new ClassRegistry();
+		assertTrue(reg.register(Collections.<Class, String>singletonMap(Car.class, CAR)));
+		assertFalse("registering again changes nothing",
+				reg.register(Collections.<Class, String>singletonMap(Car.class, CAR)));
+		assertEquals(1, reg.classesOf(CAR).size());
+		ClassHierarchyIndex index = reg.index();
+		assertFalse(reg.register(Collections.<Class, String>singletonMap(Car.class, CAR)));
+		assertSame("the snapshot is kept when nothing changes", index, reg.index());
+	}
+
+	@Test
+	public void testConcurrentRegistration() throws Exception {
+		final ClassRegistry reg = new ClassRegistry();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < 100; j++) {
+						HashMap<Class, String> types = new HashMap<Class, String>();
+						types.put(Vehicle.class, VEHICLE);
+						types.put(Car.class, CAR);
+						reg.register(types);
+						reg.index().mostSpecificSubClass(Vehicle.class, Arrays.asList(VEHICLE, CAR));
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(Arrays.asList(Vehicle.class), reg.classesOf(VEHICLE));
+		assertEquals(Arrays.asList(Car.class), reg.classesOf(CAR));
+		assertSame(Car.class, reg.index().mostSpecificSubClass(Vehicle.class, Arrays.asList(VEHICLE, CAR)));
+	}
+}
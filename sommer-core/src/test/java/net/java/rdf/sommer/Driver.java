@@ -0,0 +1,31 @@
+package net.java.rdf.sommer;
+
+import net.java.rdf.annotations.rdf;
+
+/**
+ * Someone who drives a car, so that examples can describe the car by its own relations.
+ */
+@rdf(Vehicle.v + "Driver")
+public class Driver {
+	@rdf(Vehicle.v + "name")
+	private String name;
+
+	@rdf(Vehicle.v + "drives")
+	private Car car;
+
+	public String getName() {
+		return this.name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public Car getCar() {
+		return this.car;
+	}
+
+	public void setCar(Car car) {
+		this.car = car;
+	}
+}
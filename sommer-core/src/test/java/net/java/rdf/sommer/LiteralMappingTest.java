@@ -0,0 +1,188 @@
+package net.java.rdf.sommer;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Every literal type is read back as it was written, and an example with a value of the type finds the
+ * objects that have it.
+ */
+public class LiteralMappingTest {
+	public final static String GRAPH = "http://sommer.dev.java.net/unit-tests/literals/";
+
+	private static int graphs = 0;
+
+	private static synchronized Mapper newMapper() {
+		return MapperManager.getMapperForGraph(GRAPH + (++graphs));
+	}
+
+	/**
+	 * Map a and b, which differ by the value of the relation, and check that the example with the value of
+	 * a only finds a.
+	 *
+	 * @return the value of the relation of a, read back from the store
+	 */
+	private static <T> T readBackAndQuery(Measure a, Measure b, Measure example, String relation, Class<T> type) {
+		Mapper mapper = newMapper();
+		mapper.addObjects(a, b);
+		Collection<T> values = mapper.getRelatedObject(a, Measure.m + relation, false, type);
+		assertEquals("one value read back? ", 1, values.size());
+		Collection<Measure> found = mapper.queryByExample(example, Measure.class);
+		assertEquals("the example finds one measure? ", 1, found.size());
+		assertSame(a, found.iterator().next());
+		return values.iterator().next();
+	}
+
+	private static Calendar calendar(long time) {
+		GregorianCalendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		cal.setTimeInMillis(time);
+		return cal;
+	}
+
+	@Test
+	public void testInteger() throws Exception {
+		Measure a = new Measure();
+		a.setCount(7);
+		Measure b = new Measure();
+		b.setCount(8);
+		Measure example = new Measure();
+		example.setCount(7);
+		assertEquals(Integer.valueOf(7), readBackAndQuery(a, b, example, "count", Integer.class));
+	}
+
+	@Test
+	public void testLong() throws Exception {
+		Measure a = new Measure();
+		a.setTotal(7L);
+		Measure b = new Measure();
+		b.setTotal(8L);
+		Measure example = new Measure();
+		example.setTotal(7L);
+		assertEquals(Long.valueOf(7L), readBackAndQuery(a, b, example, "total", Long.class));
+	}
+
+	@Test
+	public void testShort() throws Exception {
+		Measure a = new Measure();
+		a.setSmall((short) 7);
+		Measure b = new Measure();
+		b.setSmall((short) 8);
+		Measure example = new Measure();
+		example.setSmall((short) 7);
+		assertEquals(Short.valueOf((short) 7), readBackAndQuery(a, b, example, "small", Short.class));
+	}
+
+	@Test
+	public void testByte() throws Exception {
+		Measure a = new Measure();
+		a.setTiny((byte) 7);
+		Measure b = new Measure();
+		b.setTiny((byte) 8);
+		Measure example = new Measure();
+		example.setTiny((byte) 7);
+		assertEquals(Byte.valueOf((byte) 7), readBackAndQuery(a, b, example, "tiny", Byte.class));
+	}
+
+	@Test
+	public void testDouble() throws Exception {
+		Measure a = new Measure();
+		a.setRatio(0.5);
+		Measure b = new Measure();
+		b.setRatio(0.25);
+		Measure example = new Measure();
+		example.setRatio(0.5);
+		assertEquals(Double.valueOf(0.5), readBackAndQuery(a, b, example, "ratio", Double.class));
+	}
+
+	@Test
+	public void testFloat() throws Exception {
+		Measure a = new Measure();
+		a.setWeight(0.5f);
+		Measure b = new Measure();
+		b.setWeight(0.25f);
+		Measure example = new Measure();
+		example.setWeight(0.5f);
+		assertEquals(Float.valueOf(0.5f), readBackAndQuery(a, b, example, "weight", Float.class));
+	}
+
+	@Test
+	public void testBoolean() throws Exception {
+		Measure a = new Measure();
+		a.setActive(false);
+		Measure b = new Measure();
+		b.setActive(true);
+		Measure example = new Measure();
+		example.setActive(false);
+		assertEquals(Boolean.FALSE, readBackAndQuery(a, b, example, "active", Boolean.class));
+	}
+
+	@Test
+	public void testBigDecimal() throws Exception {
+		Measure a = new Measure();
+		a.setPrice(new BigDecimal("12.50"));
+		Measure b = new Measure();
+		b.setPrice(new BigDecimal("12.5001"));
+		Measure example = new Measure();
+		example.setPrice(new BigDecimal("12.50"));
+		assertEquals(new BigDecimal("12.50"), readBackAndQuery(a, b, example, "price", BigDecimal.class));
+	}
+
+	@Test
+	public void testBigInteger() throws Exception {
+		Measure a = new Measure();
+		a.setBig(new BigInteger("123456789012345678901234567890"));
+		Measure b = new Measure();
+		b.setBig(BigInteger.ONE);
+		Measure example = new Measure();
+		example.setBig(new BigInteger("123456789012345678901234567890"));
+		assertEquals(new BigInteger("123456789012345678901234567890"), readBackAndQuery(a, b, example, "big", BigInteger.class));
+	}
+
+	@Test
+	public void testXMLGregorianCalendar() throws Exception {
+		DatatypeFactory df = DatatypeFactory.newInstance();
+		Measure a = new Measure();
+		a.setAt(df.newXMLGregorianCalendar("2008-10-18T12:00:00Z"));
+		Measure b = new Measure();
+		b.setAt(df.newXMLGregorianCalendar("2008-10-19T12:00:00Z"));
+		Measure example = new Measure();
+		example.setAt(df.newXMLGregorianCalendar("2008-10-18T12:00:00Z"));
+		assertEquals(a.getAt(), readBackAndQuery(a, b, example, "at", XMLGregorianCalendar.class));
+	}
+
+	@Test
+	public void testCalendar() throws Exception {
+		Measure a = new Measure();
+		a.setSince(calendar(1000000000000L));
+		Measure b = new Measure();
+		b.setSince(calendar(1100000000000L));
+		Measure example = new Measure();
+		example.setSince(calendar(1000000000000L));
+		Calendar read = readBackAndQuery(a, b, example, "since", Calendar.class);
+		assertEquals(1000000000000L, read.getTimeInMillis());
+	}
+
+	@Test
+	public void testByteArray() throws Exception {
+		Measure a = new Measure();
+		a.setData(new byte[] { 1, 2, 3 });
+		Measure b = new Measure();
+		b.setData(new byte[] { 4, 5 });
+		Measure example = new Measure();
+		example.setData(new byte[] { 1, 2, 3 });
+		byte[] read = readBackAndQuery(a, b, example, "data", byte[].class);
+		assertTrue("the bytes read back are those written? ", Arrays.equals(a.getData(), read));
+	}
+}
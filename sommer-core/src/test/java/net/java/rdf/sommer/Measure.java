@@ -0,0 +1,149 @@
+package net.java.rdf.sommer;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Calendar;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import net.java.rdf.annotations.rdf;
+
+/**
+ * A thing with a field of each of the literal types.
+ */
+@rdf(Measure.m + "Measure")
+public class Measure {
+	public static final String m = "http://sommer.dev.java.net/unit-tests/measure/#";
+
+	@rdf(m + "count")
+	private Integer count;
+
+	@rdf(m + "total")
+	private Long total;
+
+	@rdf(m + "small")
+	private Short small;
+
+	@rdf(m + "tiny")
+	private Byte tiny;
+
+	@rdf(m + "ratio")
+	private Double ratio;
+
+	@rdf(m + "weight")
+	private Float weight;
+
+	@rdf(m + "active")
+	private Boolean active;
+
+	@rdf(m + "price")
+	private BigDecimal price;
+
+	@rdf(m + "big")
+	private BigInteger big;
+
+	@rdf(m + "at")
+	private XMLGregorianCalendar at;
+
+	@rdf(m + "since")
+	private Calendar since;
+
+	@rdf(m + "data")
+	private byte[] data;
+
+	public Integer getCount() {
+		return this.count;
+	}
+
+	public void setCount(Integer count) {
+		this.count = count;
+	}
+
+	public Long getTotal() {
+		return this.total;
+	}
+
+	public void setTotal(Long total) {
+		this.total = total;
+	}
+
+	public Short getSmall() {
+		return this.small;
+	}
+
+	public void setSmall(Short small) {
+		this.small = small;
+	}
+
+	public Byte getTiny() {
+		return this.tiny;
+	}
+
+	public void setTiny(Byte tiny) {
+		this.tiny = tiny;
+	}
+
+	public Double getRatio() {
+		return this.ratio;
+	}
+
+	public void setRatio(Double ratio) {
+		this.ratio = ratio;
+	}
+
+	public Float getWeight() {
+		return this.weight;
+	}
+
+	public void setWeight(Float weight) {
+		this.weight = weight;
+	}
+
+	public Boolean getActive() {
+		return this.active;
+	}
+
+	public void setActive(Boolean active) {
+		this.active = active;
+	}
+
+	public BigDecimal getPrice() {
+		return this.price;
+	}
+
+	public void setPrice(BigDecimal price) {
+		this.price = price;
+	}
+
+	public BigInteger getBig() {
+		return this.big;
+	}
+
+	public void setBig(BigInteger big) {
+		this.big = big;
+	}
+
+	public XMLGregorianCalendar getAt() {
+		return this.at;
+	}
+
+	public void setAt(XMLGregorianCalendar at) {
+		this.at = at;
+	}
+
+	public Calendar getSince() {
+		return this.since;
+	}
+
+	public void setSince(Calendar since) {
+		this.since = since;
+	}
+
+	public byte[] getData() {
+		return this.data;
+	}
+
+	public void setData(byte[] data) {
+		this.data = data;
+	}
+}
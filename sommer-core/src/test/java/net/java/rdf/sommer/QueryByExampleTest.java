@@ -0,0 +1,144 @@
+package net.java.rdf.sommer;
+
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import net.java.rdf.sommer.util.CloseableIterator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Every test runs against a named graph of its own, which is queried in SPARQL, and against the default
+ * context, which is queried by matching statements. The data of the default context is shared by the
+ * tests, so what they add to it is named after the test.
+ */
+public class QueryByExampleTest {
+	public final static String GRAPH = "http://sommer.dev.java.net/unit-tests/examples/";
+
+	private static int graphs = 0;
+
+	private static synchronized Mapper newMapper() {
+		return MapperManager.getMapperForGraph(GRAPH + (++graphs));
+	}
+
+	/**
+	 * @return a mapper for a new named graph and the mapper for the default context, both with the data of
+	 *         SommerTest
+	 */
+	private static Mapper[] mappersWithTestData() throws Exception {
+		Mapper[] mappers = { newMapper(), MapperManager.getMapperForGraph((String) null) };
+		for (Mapper mapper : mappers) {
+			InputStreamReader rdfReader = new InputStreamReader(SommerTest.class
+					.getResourceAsStream("test1.n3"));
+			mapper.importFrom(rdfReader, SommerTest.BASE_REF, "text/rdf+n3");
+			rdfReader.close();
+			mapper.preload(Vehicle.class, Car.class, Plane.class, Driver.class);
+		}
+		return mappers;
+	}
+
+	private static <T> List<T> iterate(Mapper mapper, Object example, Class<T> clazz) {
+		ArrayList<T> result = new ArrayList<T>();
+		CloseableIterator<T> it = mapper.iterateByExample(example, clazz);
+		try {
+			while (it.hasNext()) {
+				result.add(it.next());
+			}
+		} finally {
+			it.close();
+		}
+		return result;
+	}
+
+	private static Car car(String colour) {
+		Car example = new Car();
+		example.setColour(colour);
+		return example;
+	}
+
+	@Test
+	public void testLiteralExample() throws Exception {
+		for (Mapper mapper : mappersWithTestData()) {
+			Collection<Car> cars = mapper.queryByExample(car(SommerTest.CAR1_COLOUR), Car.class);
+			assertEquals("one car is blue in " + mapper.graphId() + "? ", 1, cars.size());
+			assertEquals(SommerTest.CAR1_ID, cars.iterator().next().getId());
+
+			//the same shape of example, with another value
+			cars = mapper.queryByExample(car(SommerTest.CAR2_COLOUR), Car.class);
+			assertEquals("one car is red in " + mapper.graphId() + "? ", 1, cars.size());
+			assertEquals(SommerTest.CAR2_ID, cars.iterator().next().getId());
+
+			List<Car> iterated = iterate(mapper, car(SommerTest.CAR1_COLOUR), Car.class);
+			assertEquals(1, iterated.size());
+			assertEquals(SommerTest.CAR1_ID, iterated.get(0).getId());
+
+			assertTrue("no car is green? ", mapper.queryByExample(car("green"), Car.class).isEmpty());
+			assertTrue(iterate(mapper, car("green"), Car.class).isEmpty());
+		}
+	}
+
+	@Test
+	public void testUriExample() throws Exception {
+		for (Mapper mapper : mappersWithTestData()) {
+			Car example = new Car();
+			example.setOwner(SommerTest.USER1_ID);
+			Collection<Vehicle> vehicles = mapper.queryByExample(example, Vehicle.class);
+			assertEquals("user1 owns two vehicles in " + mapper.graphId() + "? ", 2, vehicles.size());
+			assertEquals(2, iterate(mapper, example, Vehicle.class).size());
+
+			example.setOwner(SommerTest.USER2_ID);
+			vehicles = mapper.queryByExample(example, Vehicle.class);
+			assertEquals("user2 owns one vehicle in " + mapper.graphId() + "? ", 1, vehicles.size());
+			assertEquals(SommerTest.CAR2_ID, vehicles.iterator().next().getId());
+			List<Vehicle> iterated = iterate(mapper, example, Vehicle.class);
+			assertEquals(1, iterated.size());
+			assertEquals(SommerTest.CAR2_ID, iterated.get(0).getId());
+
+			example.setOwner(new URI(SommerTest.BASE_REF + "nobody"));
+			assertTrue(mapper.queryByExample(example, Vehicle.class).isEmpty());
+		}
+	}
+
+	@Test
+	public void testNestedExample() throws Exception {
+		int n = 0;
+		for (Mapper mapper : mappersWithTestData()) {
+			String colour = "nested-" + (++n);
+			Car car = car(colour);
+			car.setId(new URI(SommerTest.BASE_REF + "car-" + colour));
+			Driver driver = new Driver();
+			driver.setName("driver of " + colour);
+			driver.setCar(car);
+			Driver other = new Driver();
+			other.setName("driver of car01");
+			other.setCar(mapper.getObjectById(SommerTest.CAR1_ID.toString(), Car.class));
+			mapper.addObjects(car, driver, other);
+
+			Driver example = new Driver();
+			example.setCar(car(colour));
+			Collection<Driver> found = mapper.queryByExample(example, Driver.class);
+			assertEquals("one driver drives a car of colour " + colour + " in " + mapper.graphId() + "? ", 1,
+					found.size());
+			assertSame(driver, found.iterator().next());
+			List<Driver> iterated = iterate(mapper, example, Driver.class);
+			assertEquals(1, iterated.size());
+			assertSame(driver, iterated.get(0));
+
+			//the same shape, with another value and a field of the outer object
+			example.setCar(car(SommerTest.CAR1_COLOUR));
+			example.setName("driver of car01");
+			found = mapper.queryByExample(example, Driver.class);
+			assertEquals("one driver drives car01 in " + mapper.graphId() + "? ", 1, found.size());
+			assertSame(other, found.iterator().next());
+
+			example.setName("driver of " + colour);
+			assertTrue("the names and colours are of different drivers? ",
+					mapper.queryByExample(example, Driver.class).isEmpty());
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package net.java.rdf.sommer;
+
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import net.java.rdf.annotations.rdf;
+import net.java.rdf.sommer.util.RDFCollection;
+
+import org.junit.Test;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.URIImpl;
+
+import static org.junit.Assert.*;
+
+/**
+ * Changes made through the mappers must be seen by what was read before them.
+ * Every test reads the data of SommerTest in a graph of its own.
+ */
+public class SesameMapperChangesTest {
+	public final static String GRAPH = "http://sommer.dev.java.net/unit-tests/changes/";
+
+	private static int graphs = 0;
+
+	private static synchronized SesameMapper newMapper() {
+		return (SesameMapper) MapperManager.getMapperForGraph(GRAPH + (++graphs));
+	}
+
+	private static SesameMapper mapperWithTestData() throws Exception {
+		SesameMapper mapper = newMapper();
+		InputStreamReader rdfReader = new InputStreamReader(SommerTest.class
+				.getResourceAsStream("test1.n3"));
+		mapper.importFrom(rdfReader, SommerTest.BASE_REF, "text/rdf+n3");
+		rdfReader.close();
+		return mapper;
+	}
+
+	private static URI owner() {
+		return new URIImpl(Vehicle.v + "owner");
+	}
+
+	@Test
+	public void testSetFieldThenRead() throws Exception {
+		SesameMapper mapper = mapperWithTestData();
+		rdf colour = MapperManager.rewrittenRelation(Car.class, "colour");
+
+		assertEquals(SommerTest.CAR1_COLOUR, mapper.getField(String.class, SommerTest.CAR1_ID, colour, null));
+		mapper.setField(String.class, SommerTest.CAR1_ID, colour, "green");
+		assertEquals("the value read before was forgotten? ", "green",
+				mapper.getField(String.class, SommerTest.CAR1_ID, colour, null));
+	}
+
+	@Test
+	public void testRemoveWithUnknownEndForgetsInverseField() throws Exception {
+		SesameMapper mapper = mapperWithTestData();
+		rdf ownerOf = new ClassIndex.IndexedRelation(Vehicle.v + "owner", true, "");
+
+		assertEquals(SommerTest.CAR2_ID, mapper.getField(java.net.URI.class, SommerTest.USER2_ID, ownerOf, null));
+		//the owners of car02 are not given
+		mapper.removeAll((Resource) mapper.map(SommerTest.CAR2_ID), owner(), false);
+		assertNull("user2 no longer owns car02? ",
+				mapper.getField(java.net.URI.class, SommerTest.USER2_ID, ownerOf, null));
+	}
+
+	@Test
+	public void testCollectionReloadsAfterAnotherMapperWrites() throws Exception {
+		SesameMapper reader = mapperWithTestData();
+		SesameMapper writer = newMapper();
+		reader.addContext(writer.getWriteGraphs().toString());
+		RDFCollection<java.net.URI> owned = new RDFCollection<java.net.URI>(reader, null, java.net.URI.class,
+				SommerTest.USER1_ID, owner(), true);
+
+		assertEquals("user1 owns car01 and plane01? ", 2, owned.toArray().length);
+		writer.addRelation((Resource) writer.map(SommerTest.USER1_ID), owner(), true, SommerTest.CAR2_ID);
+		assertTrue("the write of the other mapper is seen? ", owned.contains(SommerTest.CAR2_ID));
+		assertEquals(3, owned.toArray().length);
+	}
+
+	@Test
+	public void testLiteralSubjectsAreRejected() throws Exception {
+		SesameMapper mapper = mapperWithTestData();
+		Resource user1 = (Resource) mapper.map(SommerTest.USER1_ID);
+
+		assertFalse("an inverse relation to a literal cannot be added",
+				mapper.changeRelations(user1, owner(), true, Collections.<Value>emptyList(),
+						Arrays.asList(SommerTest.CAR2_ID, "a literal")));
+		try {
+			mapper.commit();
+			fail("the batch of the rejected change was left open");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+		assertFalse("nothing was written? ",
+				mapper.getCollection(user1, owner(), true, java.net.URI.class).contains(SommerTest.CAR2_ID));
+		mapper.addRelation(user1, owner(), true, SommerTest.CAR2_ID);
+		assertTrue("the store is written to again? ",
+				mapper.getCollection(user1, owner(), true, java.net.URI.class).contains(SommerTest.CAR2_ID));
+	}
+
+	@Test
+	public void testReplaceWritesOnlyTheDifference() throws Exception {
+		SesameMapper mapper = mapperWithTestData();
+		RDFCollection<java.net.URI> owned = new RDFCollection<java.net.URI>(mapper, null, java.net.URI.class,
+				SommerTest.USER1_ID, owner(), true);
+		Resource car1 = (Resource) mapper.map(SommerTest.CAR1_ID);
+		Resource car2 = (Resource) mapper.map(SommerTest.CAR2_ID);
+		Resource plane1 = (Resource) mapper.map(SommerTest.PLANE1_ID);
+		long car1Version = mapper.version(car1, owner(), false);
+		long plane1Version = mapper.version(plane1, owner(), false);
+		long car2Version = mapper.version(car2, owner(), false);
+
+		owned.replaceWith(Arrays.asList(SommerTest.CAR1_ID, SommerTest.CAR2_ID));
+		assertEquals("car01 was not written? ", car1Version, mapper.version(car1, owner(), false));
+		assertTrue("plane01 was removed? ", plane1Version != mapper.version(plane1, owner(), false));
+		assertTrue("car02 was added? ", car2Version != mapper.version(car2, owner(), false));
+		assertEquals(2, owned.size());
+		assertTrue(owned.containsAll(Arrays.asList(SommerTest.CAR1_ID, SommerTest.CAR2_ID)));
+	}
+
+	@Test
+	public void testChangesReturnWhetherMembershipChanged() throws Exception {
+		SesameMapper mapper = mapperWithTestData();
+		RDFCollection<java.net.URI> owned = new RDFCollection<java.net.URI>(mapper, null, java.net.URI.class,
+				SommerTest.USER1_ID, owner(), true);
+
+		for (int i = 0; i < 2; i++) { //the second time the members have been read
+			assertFalse("car02 is not a member", owned.remove(SommerTest.CAR2_ID));
+			assertFalse("car01 is a member", owned.addAll(Arrays.asList(SommerTest.CAR1_ID)));
+			assertFalse("no member is removed", owned.removeAll(Arrays.asList(SommerTest.CAR2_ID)));
+			assertFalse("car01 is a member", owned.add(SommerTest.CAR1_ID));
+			owned.toArray();
+		}
+		assertTrue(owned.add(SommerTest.CAR2_ID));
+		assertTrue("a member of the same name is removed",
+				owned.remove(new java.net.URI(SommerTest.CAR2_ID.toString())));
+		assertTrue(owned.retainAll(Arrays.asList(SommerTest.CAR1_ID)));
+		assertFalse(owned.retainAll(Arrays.asList(SommerTest.CAR1_ID)));
+		assertEquals(1, owned.size());
+	}
+}
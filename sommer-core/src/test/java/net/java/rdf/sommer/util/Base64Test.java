@@ -0,0 +1,46 @@
+package net.java.rdf.sommer.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the base 64 encoding of xsd:base64Binary literals.
+ */
+public class Base64Test {
+
+	@Test
+	public void testKnownValues() {
+		assertEquals("", Base64.encode(new byte[0]));
+		assertEquals("Zg==", Base64.encode("f".getBytes()));
+		assertEquals("Zm8=", Base64.encode("fo".getBytes()));
+		assertEquals("Zm9v", Base64.encode("foo".getBytes()));
+		assertEquals("Zm9vYmFy", Base64.encode("foobar".getBytes()));
+		assertEquals("foob", new String(Base64.decode("Zm9v\nYg==")));
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Random random = new Random(42);
+		for (int length = 0; length < 100; length++) {
+			byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			assertTrue(Arrays.equals(bytes, Base64.decode(Base64.encode(bytes))));
+		}
+	}
+
+	@Test
+	public void testNotBase64() {
+		for (String bad : new String[]{"Zm9", "Zm=v", "Zm9v*A==", "Z==="}) {
+			try {
+				Base64.decode(bad);
+				fail(bad + " should not decode");
+			} catch (IllegalArgumentException e) {
+				//expected
+			}
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package net.java.rdf.sommer.util;
+
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import net.java.rdf.sommer.Car;
+import net.java.rdf.sommer.MapperManager;
+import net.java.rdf.sommer.Plane;
+import net.java.rdf.sommer.SesameMapper;
+import net.java.rdf.sommer.SommerTest;
+import net.java.rdf.sommer.Vehicle;
+
+import org.junit.Test;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+
+import static org.junit.Assert.*;
+
+/**
+ * Every test reads the data of SommerTest in a graph of its own.
+ */
+public class RDFCollectionTest {
+	public final static String GRAPH = "http://sommer.dev.java.net/unit-tests/collections/";
+	public final static URI OWNER = new URIImpl(Vehicle.v + "owner");
+	public final static URI LIKES = new URIImpl(Vehicle.v + "likes");
+	/** enough members for an iterator to read them from the database as it goes */
+	public final static int MEMBERS = RDFCollection.STREAM_THRESHOLD + 500;
+
+	private static int graphs = 0;
+
+	private static synchronized SesameMapper newMapper() {
+		return (SesameMapper) MapperManager.getMapperForGraph(GRAPH + (++graphs));
+	}
+
+	private static SesameMapper mapperWithTestData() throws Exception {
+		SesameMapper mapper = newMapper();
+		InputStreamReader rdfReader = new InputStreamReader(SommerTest.class
+				.getResourceAsStream("test1.n3"));
+		mapper.importFrom(rdfReader, SommerTest.BASE_REF, "text/rdf+n3");
+		rdfReader.close();
+		mapper.preload(Vehicle.class, Car.class, Plane.class);
+		return mapper;
+	}
+
+	@Test
+	public void testSizeLeavesOutUnmappableValues() throws Exception {
+		SesameMapper mapper = mapperWithTestData();
+		Resource user1 = (Resource) mapper.map(SommerTest.USER1_ID);
+		java.net.URI thing = new java.net.URI(SommerTest.BASE_REF + "thing");
+		//a thing without a type is not a vehicle
+		mapper.addRelation(user1, OWNER, true, thing);
+		mapper.addRelation(user1, LIKES, false, thing);
+
+		RDFCollection<Vehicle> owned = new RDFCollection<Vehicle>(mapper, null, Vehicle.class,
+				SommerTest.USER1_ID, OWNER, true);
+		assertEquals("car01 and plane01 are counted before they are read? ", 2, owned.size());
+		assertFalse(owned.isEmpty());
+		assertFalse("the thing is not a member", owned.contains(thing));
+		assertEquals(2, owned.toArray().length);
+		assertEquals("car01 and plane01 are counted once read? ", 2, owned.size());
+
+		RDFCollection<Vehicle> liked = new RDFCollection<Vehicle>(mapper, null, Vehicle.class,
+				SommerTest.USER1_ID, LIKES, false);
+		assertTrue("only a thing is liked", liked.isEmpty());
+		assertEquals(0, liked.size());
+		assertEquals(0, liked.toArray().length);
+		assertTrue(liked.isEmpty());
+	}
+
+	/**
+	 * @return the collection of the MEMBERS things user1 likes, which have not been read
+	 */
+	private static RDFCollection<java.net.URI> manyMembers(SesameMapper mapper) throws Exception {
+		Resource user1 = (Resource) mapper.map(SommerTest.USER1_ID);
+		mapper.beginBatch();
+		for (int i = 0; i < MEMBERS; i++) {
+			mapper.addRelation(user1, LIKES, false, new java.net.URI(SommerTest.BASE_REF + "thing" + i));
+		}
+		mapper.commit();
+		return new RDFCollection<java.net.URI>(mapper, null, java.net.URI.class, SommerTest.USER1_ID, LIKES, false);
+	}
+
+	@Test
+	public void testStreamingReadsEveryMember() throws Exception {
+		SesameMapper mapper = mapperWithTestData();
+		SesameMapper other = newMapper(); //on the same connection
+		Resource user2 = (Resource) other.map(SommerTest.USER2_ID);
+		RDFCollection<java.net.URI> liked = manyMembers(mapper);
+
+		Iterator<java.net.URI> it = liked.iterator();
+		assertTrue(it instanceof CloseableIterator);
+		HashSet<java.net.URI> read = new HashSet<java.net.URI>();
+		while (it.hasNext()) {
+			read.add(it.next());
+			if (read.size() == 200) {
+				//a write while the result is open, some windows into it
+				other.addRelation(user2, LIKES, false, SommerTest.CAR1_ID);
+			}
+		}
+		assertEquals("every member is read once? ", MEMBERS, read.size());
+		assertTrue(read.contains(new java.net.URI(SommerTest.BASE_REF + "thing0")));
+		assertTrue(read.contains(new java.net.URI(SommerTest.BASE_REF + "thing" + (MEMBERS - 1))));
+	}
+
+	@Test
+	public void testStreamingRemove() throws Exception {
+		SesameMapper mapper = mapperWithTestData();
+		Resource user1 = (Resource) mapper.map(SommerTest.USER1_ID);
+		RDFCollection<java.net.URI> liked = manyMembers(mapper);
+
+		int i = 0;
+		for (Iterator<java.net.URI> it = liked.iterator(); it.hasNext(); i++) {
+			it.next();
+			if (i % 2 == 0) {
+				it.remove();
+			}
+			if (i == 100) {
+				assertEquals("the removals wait for the end? ", MEMBERS, mapper.countRelated(user1, LIKES, false));
+			}
+		}
+		assertEquals(MEMBERS, i);
+		assertEquals("half were removed? ", MEMBERS / 2, liked.size());
+		assertEquals(MEMBERS / 2, liked.toArray().length);
+	}
+
+	@Test
+	public void testClosingAppliesRemovals() throws Exception {
+		SesameMapper mapper = mapperWithTestData();
+		RDFCollection<java.net.URI> liked = manyMembers(mapper);
+
+		CloseableIterator<java.net.URI> it = (CloseableIterator<java.net.URI>) liked.iterator();
+		java.net.URI first = null;
+		for (int i = 0; i < 10; i++) {
+			java.net.URI member = it.next();
+			if (i % 2 == 0) {
+				it.remove();
+				first = (first == null) ? member : first;
+			}
+		}
+		it.close();
+		assertEquals("the removals were written on closing? ", MEMBERS - 5, liked.size());
+		assertFalse(liked.contains(first));
+		assertTrue("the store is written to again? ", liked.add(first));
+		assertEquals(MEMBERS - 4, liked.size());
+	}
+}
@@ -0,0 +1,222 @@
+package net.java.rdf.sommer.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the registry used by the mappers to remember the names of objects.
+ */
+public class WeakIdentityRegistryTest {
+	static final int THREADS = 8;
+	static final int OBJECTS = 2000;
+	static final int ROUNDS = 20;
+
+	/**
+	 * objects that are equal but not identical
+	 */
+	static class Thing {
+		public boolean equals(Object o) {
+			return o instanceof Thing;
+		}
+
+		public int hashCode() {
+			return 1;
+		}
+	}
+
+	@Test
+	public void testIdentity() {
+		WeakIdentityRegistry<String> reg = new WeakIdentityRegistry<String>();
+		Thing t1 = new Thing();
+		Thing t2 = new Thing();
+		reg.put(t1, "a");
+		assertEquals("a", reg.get(t1));
+		assertNull("equal objects are not the same object", reg.get(t2));
+		reg.put(t2, "a");
+		assertEquals("two objects can have the same name", 2, reg.getObjects("a").size());
+		reg.put(t1, "b");
+		assertEquals("renaming removes the old name", 1, reg.getObjects("a").size());
+		assertSame(t2, reg.getObjects("a").get(0));
+		assertSame(t1, reg.getObjects("b").get(0));
+		assertEquals("b", reg.remove(t1));
+		assertTrue(reg.getObjects("b").isEmpty());
+		assertFalse(reg.containsKey(t1));
+		assertEquals(1, reg.size());
+		reg.clear();
+		assertEquals(0, reg.size());
+		assertNull(reg.get(t2));
+	}
+
+	@Test
+	public void testWeakness() throws Exception {
+		WeakIdentityRegistry<String> reg = new WeakIdentityRegistry<String>();
+		Object kept = new Object();
+		reg.put(kept, "kept");
+		for (int i = 0; i < 1000; i++) {
+			reg.put(new Object(), "lost" + (i % 10));
+		}
+		for (int i = 0; i < 50 && reg.size() > 1; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals("unreferenced objects should have been forgotten", 1, reg.size());
+		assertTrue(reg.getObjects("lost1").isEmpty());
+		assertSame(kept, reg.getObjects("kept").get(0));
+	}
+
+	/**
+	 * Many threads name, rename, resolve and forget their own objects, all using a small set of
+	 * shared names. At the end each name must list exactly the objects that still have it.
+	 */
+	@Test
+	public void testConcurrentStress() throws Exception {
+		final WeakIdentityRegistry<String> reg = new WeakIdentityRegistry<String>();
+		final Object[][] objects = new Object[THREADS][OBJECTS];
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final Object[] mine = objects[t];
+			for (int i = 0; i < OBJECTS; i++) {
+				mine[i] = new Thing();
+			}
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int r = 0; r < ROUNDS; r++) {
+							for (int i = 0; i < mine.length; i++) {
+								String name = "n" + ((i + r) % 37);
+								reg.put(mine[i], name);
+								assertEquals(name, reg.get(mine[i]));
+								if ((i + r) % 5 == 0) {
+									assertEquals(name, reg.remove(mine[i]));
+									assertNull(reg.get(mine[i]));
+								}
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread th : threads) {
+			th.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		int expected = 0;
+		int listed = 0;
+		for (int n = 0; n < 37; n++) {
+			for (Object o : reg.getObjects("n" + n)) {
+				assertEquals("n" + n, reg.get(o));
+				listed++;
+			}
+		}
+		for (Object[] mine : objects) {
+			for (Object o : mine) {
+				if (reg.get(o) != null) {
+					expected++;
+				}
+			}
+		}
+		assertEquals("every named object is listed under its name, and only there", expected, listed);
+		assertEquals(expected, reg.size());
+	}
+
+	/**
+	 * Compare the throughput of the registry with the pair of synchronized WeakHashMaps the mapper
+	 * used before, while checking that every thread sees the names it gave. Timings are machine
+	 * dependent, so they are printed, and the registry only fails if it is much slower than the maps.
+	 */
+	@Test
+	public void testThroughput() throws Exception {
+		final WeakIdentityRegistry<String> reg = new WeakIdentityRegistry<String>();
+		final Map<Object, String> obj2name = Collections.synchronizedMap(new WeakHashMap<Object, String>());
+		final Map<String, List<Object>> name2obj = Collections.synchronizedMap(new WeakHashMap<String, List<Object>>());
+		final Object lock = new Object();
+		final AtomicReference<String> wrong = new AtomicReference<String>();
+
+		Work registryWork = new Work() {
+			void map(Object o, String name) {
+				reg.put(o, name);
+				if (!name.equals(reg.get(o)) || !reg.getObjects(name).contains(o)) {
+					wrong.set(name);
+				}
+			}
+		};
+		Work mapsWork = new Work() {
+			void map(Object o, String name) {
+				synchronized (lock) {
+					obj2name.put(o, name);
+					List<Object> l = name2obj.get(name);
+					if (l == null) {
+						l = new ArrayList<Object>();
+						name2obj.put(name, l);
+					}
+					if (!l.contains(o)) {
+						l.add(o);
+					}
+				}
+				obj2name.get(o);
+				name2obj.get(name);
+			}
+		};
+		//a first run of each, so that both are compiled before they are timed
+		time(registryWork);
+		time(mapsWork);
+		reg.clear();
+		long registry = time(registryWork);
+		long maps = time(mapsWork);
+		System.out.println("WeakIdentityRegistry: " + registry + "ms, synchronized WeakHashMaps: " + maps + "ms for " +
+				THREADS + " threads mapping " + OBJECTS * ROUNDS + " objects each");
+		assertNull("wrong name for " + wrong.get(), wrong.get());
+		assertTrue("the registry took " + registry + "ms, the synchronized maps " + maps + "ms",
+				registry <= 3 * maps + 100);
+	}
+
+	static abstract class Work {
+		abstract void map(Object o, String name);
+	}
+
+	private long time(final Work work) throws InterruptedException {
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final String prefix = "t" + t + "_";
+			threads[t] = new Thread() {
+				public void run() {
+					for (int r = 0; r < ROUNDS; r++) {
+						Object[] objs = new Object[OBJECTS];
+						for (int i = 0; i < OBJECTS; i++) {
+							objs[i] = new Object();
+							//as in the mapper, a name is mostly given to just one object
+							work.map(objs[i], prefix + i);
+						}
+					}
+				}
+			};
+		}
+		long start = System.currentTimeMillis();
+		for (Thread th : threads) {
+			th.start();
+		}
+		for (Thread th : threads) {
+			th.join();
+		}
+		return System.currentTimeMillis() - start;
+	}
+}